@@ -0,0 +1,80 @@
+package emr_test;
+
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.MalformedInputException;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Splits the UTF-8 bytes of a {@link Text} on whitespace in place, without
+ * decoding the line or allocating per token. Whitespace characters are all
+ * ASCII and never occur inside a multi-byte UTF-8 sequence, so scanning the
+ * raw bytes is safe.
+ */
+public class TextTokenizer {
+
+  private byte[] bytes;
+  private int pos;
+  private int end;
+  private int tokenStart;
+  private int tokenLength;
+  private boolean tokenAscii;
+
+  /**
+   * Starts tokenizing the contents of text, which must not be modified until
+   * tokenizing is done.
+   */
+  public void reset(Text text) {
+    bytes = text.getBytes();
+    pos = 0;
+    end = text.getLength();
+    tokenStart = 0;
+    tokenLength = 0;
+  }
+
+  /**
+   * Advances to the next token, returning false when there are no more.
+   */
+  public boolean next() {
+    while (pos < end && isWhitespace(bytes[pos])) {
+      pos++;
+    }
+    if (pos == end) {
+      tokenLength = 0;
+      return false;
+    }
+    tokenStart = pos;
+    int bits = 0;
+    while (pos < end && !isWhitespace(bytes[pos])) {
+      bits |= bytes[pos];
+      pos++;
+    }
+    tokenLength = pos - tokenStart;
+    tokenAscii = bits >= 0;
+    return true;
+  }
+
+  /**
+   * Copies the current token into text, reusing its buffer. Malformed UTF-8
+   * is replaced the same way as {@link Text#toString()} does.
+   */
+  public void token(Text text) {
+    if (!tokenAscii) {
+      try {
+        Text.validateUTF8(bytes, tokenStart, tokenLength);
+      } catch (MalformedInputException e) {
+        try {
+          text.set(Text.decode(bytes, tokenStart, tokenLength, true));
+        } catch (CharacterCodingException cce) {
+          throw new IllegalStateException(cce);
+        }
+        return;
+      }
+    }
+    text.set(bytes, tokenStart, tokenLength);
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || (b >= '\t' && b <= '\r');
+  }
+}
@@ -1,6 +1,5 @@
 package emr_test; 
 import java.io.IOException;  
-import java.util.StringTokenizer;  
   
 import org.apache.hadoop.conf.Configuration;  
 import org.apache.hadoop.fs.Path;  
@@ -20,12 +19,13 @@ public class WordCount {
       
     private final static IntWritable one = new IntWritable(1);  
     private Text word = new Text();  
+    private TextTokenizer itr = new TextTokenizer();  
         
     public void map(Object key, Text value, Context context  
                     ) throws IOException, InterruptedException {  
-      StringTokenizer itr = new StringTokenizer(value.toString());  
-      while (itr.hasMoreTokens()) {  
-        word.set(itr.nextToken());  
+      itr.reset(value);  
+      while (itr.next()) {  
+        itr.token(word);  
         context.write(word, one);  
       }  
     }  
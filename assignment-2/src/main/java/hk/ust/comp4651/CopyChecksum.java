@@ -0,0 +1,238 @@
+package hk.ust.comp4651;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Checksum;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.MD5MD5CRC32CastagnoliFileChecksum;
+import org.apache.hadoop.fs.MD5MD5CRC32GzipFileChecksum;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.util.DataChecksum;
+import org.apache.hadoop.util.PureJavaCrc32C;
+import org.apache.hadoop.util.StringUtils;
+
+/*
+ * Checksum the bytes of a copy as they go through, so that a copy is
+ * verified without reading the source and the destination again.
+ *
+ * Besides the MD5 or CRC32C of the whole file, printed like md5sum does,
+ * the checksum that HDFS reports for the destination is computed on the
+ * fly: HDFS keeps a CRC per 512 bytes chunk, and getFileChecksum() returns
+ * the MD5 of the MD5s of the CRCs of every block. Comparing both verifies
+ * what HDFS stored without reading it back.
+ */
+public class CopyChecksum {
+
+	public static final String MD5 = "MD5";
+	public static final String CRC32C = "CRC32C";
+
+	private final String algorithm;
+	private final MessageDigest md5;
+	private final Checksum crc;
+	private final BlockChecksums blocks;
+	private long length;
+	private byte[] scratch;
+
+	/*
+	 * Checksum a copy to dst with MD5 or CRC32C
+	 */
+	public CopyChecksum(String algorithm, FileSystem outFS, Path dst)
+			throws IOException {
+		this.algorithm = algorithm.toUpperCase();
+		if (MD5.equals(this.algorithm)) {
+			md5 = newMD5();
+			crc = null;
+		} else if (CRC32C.equals(this.algorithm)) {
+			md5 = null;
+			crc = new PureJavaCrc32C();
+		} else {
+			throw new IllegalArgumentException("Unknown checksum: "
+					+ algorithm + ", expected " + MD5 + " or " + CRC32C);
+		}
+
+		/*
+		 * Only HDFS-like filesystems report block checksums
+		 */
+		blocks = LocalCopy.isLocal(outFS) ? null : new BlockChecksums(
+				outFS.getConf(), outFS.getDefaultBlockSize(dst));
+	}
+
+	public void update(byte[] b, int off, int len) {
+		if (md5 != null) {
+			md5.update(b, off, len);
+		} else {
+			crc.update(b, off, len);
+		}
+		if (blocks != null) {
+			blocks.update(b, off, len);
+		}
+		length += len;
+	}
+
+	/*
+	 * Checksum the remaining bytes of buffer, e.g. a mapped file
+	 */
+	public void update(ByteBuffer buffer) {
+		if (scratch == null) {
+			scratch = new byte[1 << 16];
+		}
+		while (buffer.hasRemaining()) {
+			int n = Math.min(scratch.length, buffer.remaining());
+			buffer.get(scratch, 0, n);
+			update(scratch, 0, n);
+		}
+	}
+
+	/*
+	 * Wrap a stream to checksum everything written to it
+	 */
+	public OutputStream wrap(OutputStream out) {
+		return new FilterOutputStream(out) {
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				update(b, off, len);
+			}
+
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+		};
+	}
+
+	/*
+	 * The checksum in hex, once everything went through
+	 */
+	public String digest() {
+		if (md5 != null) {
+			return StringUtils.byteToHexString(md5.digest());
+		}
+		return String.format("%08x", crc.getValue());
+	}
+
+	/*
+	 * Print the checksum of the copy like md5sum does, and compare it with
+	 * the checksum the destination filesystem reports, if it has one. A
+	 * mismatch throws a ChecksumException.
+	 */
+	public void report(FileSystem outFS, Path dst) throws IOException {
+		System.out.println(digest() + "  " + dst);
+
+		FileChecksum actual = blocks == null || length == 0 ? null : outFS
+				.getFileChecksum(dst);
+		if (actual == null) {
+			System.out.println("No checksum of " + dst + " to compare with");
+			return;
+		}
+		FileChecksum expected = blocks.fileChecksum();
+		if (!expected.getAlgorithmName().equals(actual.getAlgorithmName())) {
+			System.out.println("Cannot compare with the "
+					+ actual.getAlgorithmName() + " checksum of " + dst);
+		} else if (!expected.equals(actual)) {
+			throw new ChecksumException("Checksum mismatch: " + dst
+					+ " has " + actual + ", the copy had " + expected, 0);
+		} else {
+			System.out.println("Verified " + actual);
+		}
+	}
+
+	private static MessageDigest newMD5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * The MD5 of the MD5s of the chunk CRCs of every block, as computed by
+	 * HDFS
+	 */
+	private static class BlockChecksums {
+		private final int bytesPerCrc;
+		private final long blockSize;
+		private final DataChecksum.Type type;
+		private final Checksum chunk;
+		private final MessageDigest block = newMD5();
+		private final MessageDigest file = newMD5();
+		private final byte[] crc = new byte[4];
+		private int inChunk;
+		private long inBlock;
+		private long numBlocks;
+
+		BlockChecksums(Configuration conf, long blockSize) {
+			this.bytesPerCrc = conf.getInt("dfs.bytes-per-checksum", 512);
+			this.blockSize = blockSize;
+			this.type = DataChecksum.Type.valueOf(conf.get(
+					"dfs.checksum.type", "CRC32C"));
+			this.chunk = DataChecksum.newDataChecksum(type, bytesPerCrc);
+		}
+
+		void update(byte[] b, int off, int len) {
+			while (len > 0) {
+				/*
+				 * Blocks are made of whole chunks, a chunk never spans two
+				 * blocks
+				 */
+				int n = Math.min(len, bytesPerCrc - inChunk);
+				chunk.update(b, off, n);
+				inChunk += n;
+				inBlock += n;
+				off += n;
+				len -= n;
+				if (inChunk == bytesPerCrc || inBlock == blockSize) {
+					endChunk();
+				}
+				if (inBlock == blockSize) {
+					endBlock();
+				}
+			}
+		}
+
+		private void endChunk() {
+			int value = (int) chunk.getValue();
+			crc[0] = (byte) (value >>> 24);
+			crc[1] = (byte) (value >>> 16);
+			crc[2] = (byte) (value >>> 8);
+			crc[3] = (byte) value;
+			block.update(crc);
+			chunk.reset();
+			inChunk = 0;
+		}
+
+		private void endBlock() {
+			file.update(block.digest());
+			numBlocks++;
+			inBlock = 0;
+		}
+
+		FileChecksum fileChecksum() {
+			if (inChunk > 0) {
+				endChunk();
+			}
+			if (inBlock > 0) {
+				endBlock();
+			}
+			/*
+			 * HDFS only reports the CRCs per block of files with more than
+			 * one block
+			 */
+			long crcPerBlock = numBlocks > 1 ? blockSize / bytesPerCrc : 0;
+			MD5Hash md5 = new MD5Hash(file.digest());
+			if (type == DataChecksum.Type.CRC32C) {
+				return new MD5MD5CRC32CastagnoliFileChecksum(bytesPerCrc,
+						crcPerBlock, md5);
+			}
+			return new MD5MD5CRC32GzipFileChecksum(bytesPerCrc, crcPerBlock,
+					md5);
+		}
+	}
+}
@@ -2,10 +2,15 @@ package hk.ust.comp4651;
 
 import java.net.URI;
 
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
-import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.util.Progressable;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -13,23 +18,85 @@ import org.apache.hadoop.fs.Path;
 /*
  * Copy a file from a source to a destination.
  * The source and destination could be either the local filesystem
- * or HDFS.
+ * or HDFS. A source directory is copied with its subdirectories, see
+ * DirectoryCopy.
  */
 public class CopyFile {
 
 	private static final int BufferSize = 4096;
-	
+
+	private static final String THREADS = "threads";
+	private static final String RANGE_SIZE = "rangeSize";
+	private static final String CHECKSUM = "checksum";
+
+	/*
+	 * 128 MB ranges, a multiple of the default HDFS block size
+	 */
+	private static final long DefaultRangeSize = 128L << 20;
+
+	/*
+	 * Files of a directory copied at the same time
+	 */
+	private static final int DefaultDirectoryThreads = 4;
+
+	@SuppressWarnings("static-access")
 	public static void main(String[] args) throws Exception {
 		/*
-		 * Validate that two arguments are passed from the command line.
+		 * Parse the options, which come before the source and destination.
+		 * With more than one thread the file is copied as ranges read in
+		 * parallel, see RangedCopy.
 		 */
-		if (args.length != 2) {
-			System.err.printf("Usage: CopyFile <src file> <dst file>\n");
+		Options options = new Options();
+		options.addOption(OptionBuilder.withArgName("num").hasArg()
+				.withDescription("threads copying ranges of the file, "
+						+ "or files of a directory; unused between two "
+						+ "local files")
+				.create(THREADS));
+		options.addOption(OptionBuilder.withArgName("MB").hasArg()
+				.withDescription("size of a range, with more than one thread")
+				.create(RANGE_SIZE));
+		options.addOption(OptionBuilder.withArgName("MD5|CRC32C").hasArg()
+				.withDescription("checksum the copy and verify it")
+				.create(CHECKSUM));
+
+		CommandLine cmdline = null;
+		try {
+			CommandLineParser parser = new GnuParser();
+			cmdline = parser.parse(options, args);
+		} catch (ParseException exp) {
+			System.err.println("Error parsing command line: "
+					+ exp.getMessage());
 			System.exit(-1);
 		}
 
-		String src = args[0];
-		String dst = args[1];
+		/*
+		 * Validate that two arguments are passed from the command line, and
+		 * that the thread count and range size are positive.
+		 */
+		if (cmdline.getArgs().length != 2) {
+			usage();
+		}
+
+		String src = cmdline.getArgs()[0];
+		String dst = cmdline.getArgs()[1];
+		int threads = 1;
+		long rangeSize = DefaultRangeSize;
+		try {
+			if (cmdline.hasOption(THREADS)) {
+				threads = Integer.parseInt(cmdline.getOptionValue(THREADS));
+			}
+			if (cmdline.hasOption(RANGE_SIZE)) {
+				long mb = Long.parseLong(cmdline.getOptionValue(RANGE_SIZE));
+				rangeSize = mb > 0 && mb <= Integer.MAX_VALUE ? mb << 20 : 0;
+			}
+		} catch (NumberFormatException e) {
+			threads = 0;
+		}
+		if (threads < 1 || rangeSize < 1) {
+			System.err.println("-" + THREADS + " and -" + RANGE_SIZE
+					+ " must be positive numbers");
+			usage();
+		}
 
 		/*
 		 * Prepare the input and output filesystems
@@ -38,24 +105,73 @@ public class CopyFile {
 		FileSystem inFS = FileSystem.get(URI.create(src), conf);
 		FileSystem outFS = FileSystem.get(URI.create(dst), conf);
 
+		Progressable progress = new Progressable() {
+			public void progress() { System.out.println("."); }
+		};
+
+		if (inFS.getFileStatus(new Path(src)).isDirectory()) {
+			DirectoryCopy.copy(inFS, new Path(src), outFS, new Path(dst),
+					cmdline.hasOption(THREADS) ? threads
+							: DefaultDirectoryThreads, cmdline
+							.getOptionValue(CHECKSUM));
+			return;
+		}
+
+		/*
+		 * The checksum is computed on the bytes as they are copied
+		 */
+		CopyChecksum checksum = cmdline.hasOption(CHECKSUM) ? new CopyChecksum(
+				cmdline.getOptionValue(CHECKSUM), outFS, new Path(dst)) : null;
+
 		/*
-		 * Prepare the input and output streams
+		 * Between two local files the kernel copies the data
 		 */
-		FSDataInputStream in = null;
-		FSDataOutputStream out = null;
-
-		// TODO: Your implementation goes here...		
-		in = inFS.open(new Path(src));
-		out = outFS.create(new Path(dst),  
-				new Progressable() {
-					public void progress() { System.out.println("."); }
-		});
-		IOUtils.copyBytes(in, out, conf, true);
-
-//		inFS.copyToLocalFile(false,  new Path(src),  new Path(dst),  true);
-		// System.out.println("Copying done");
+		if (LocalCopy.isLocal(inFS) && LocalCopy.isLocal(outFS)) {
+			if (cmdline.hasOption(THREADS) || cmdline.hasOption(RANGE_SIZE)) {
+				System.err.println("-" + THREADS + " and -" + RANGE_SIZE
+						+ " are unused between two local files");
+			}
+			LocalCopy.copy(inFS, new Path(src), outFS, new Path(dst), checksum);
+		} else if (threads > 1) {
+			if (checksum != null) {
+				System.err.println("A checksum needs the bytes in order, "
+						+ "it cannot be used with -threads");
+				System.exit(-1);
+			}
+			RangedCopy.copy(inFS, new Path(src), outFS, new Path(dst),
+					threads, rangeSize, progress);
+		} else {
+			/*
+			 * Prepare the input and output streams
+			 */
+			FSDataInputStream in = null;
+			FSDataOutputStream out = null;
+
+			in = inFS.open(new Path(src));
+			out = outFS.create(new Path(dst), progress);
+			PipelinedCopy.copyBytes(in, checksum != null ? checksum.wrap(out)
+					: out, conf, true);
+		}
+
+		if (checksum != null) {
+			checksum.report(outFS, new Path(dst));
 		}
-		
-		
 	}
 
+	/*
+	 * Print the usage, with the copy each kind of source gets, and exit
+	 */
+	private static void usage() {
+		System.err.printf("Usage: CopyFile [-threads <num>] "
+				+ "[-rangeSize <MB>] [-checksum <MD5|CRC32C>] "
+				+ "<src file|dir> <dst file|dir>\n"
+				+ "  A directory is copied -threads files at a time "
+				+ "(default %d).\n"
+				+ "  A file between two local paths is copied by the kernel; "
+				+ "-threads and -rangeSize are unused.\n"
+				+ "  Any other file is copied as ranges of -rangeSize MB "
+				+ "(default %d) read by -threads threads, if more than one.\n",
+				DefaultDirectoryThreads, DefaultRangeSize >> 20);
+		System.exit(-1);
+	}
+}
@@ -2,13 +2,18 @@ package hk.ust.comp4651;
 
 import java.net.URI;
 
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.util.Progressable;
 
 /*
@@ -16,37 +21,71 @@ import org.apache.hadoop.util.Progressable;
  */
 public class CopyLocalFile {
 
-	/*
-	 * 4 KB buffer
-	 */
-	private static final int BufferSize = 4096;
+	private static final String CHECKSUM = "checksum";
 
+	@SuppressWarnings("static-access")
 	public static void main(String[] args) throws Exception {
 
+		/*
+		 * Parse the options, which come before the source and destination.
+		 */
+		Options options = new Options();
+		options.addOption(OptionBuilder.withArgName("MD5|CRC32C").hasArg()
+				.withDescription("checksum the copy and verify it")
+				.create(CHECKSUM));
+
+		CommandLine cmdline = null;
+		try {
+			CommandLineParser parser = new GnuParser();
+			cmdline = parser.parse(options, args);
+		} catch (ParseException exp) {
+			System.err.println("Error parsing command line: "
+					+ exp.getMessage());
+			System.exit(-1);
+		}
+
 		/*
 		 * Validate that two arguments are passed from the command line.
 		 */
-		if (args.length != 2) {
-			System.err
-					.printf("Usage: CopyLocalFile <src file> <dst file>\n");
+		if (cmdline.getArgs().length != 2) {
+			System.err.printf("Usage: CopyLocalFile "
+					+ "[-checksum <MD5|CRC32C>] <src file> <dst file>\n");
 			System.exit(-1);
 		}
 
-		String localSrc = args[0];
-		String dst = args[1];
+		String localSrc = cmdline.getArgs()[0];
+		String dst = cmdline.getArgs()[1];
 
 		/*
 		 * Prepare reading
 		 */
 		Configuration conf = new Configuration();
 		LocalFileSystem localFS = LocalFileSystem.getLocal(conf);
-		FSDataInputStream in = localFS.open(new Path(localSrc));
+		FileSystem outFS = FileSystem.get(URI.create(dst), conf);
 
 		/*
-		 * Prepare writing
+		 * The checksum is computed on the bytes as they are copied
 		 */
-		FileSystem outFS = FileSystem.get(URI.create(dst), conf);
+		CopyChecksum checksum = cmdline.hasOption(CHECKSUM) ? new CopyChecksum(
+				cmdline.getOptionValue(CHECKSUM), outFS, new Path(dst)) : null;
+
 		/*
+		 * A local destination is copied by the kernel, see LocalCopy
+		 */
+		if (LocalCopy.isLocal(outFS)) {
+			LocalCopy.copy(localFS, new Path(localSrc), outFS, new Path(dst),
+					checksum);
+			if (checksum != null) {
+				checksum.report(outFS, new Path(dst));
+			}
+			return;
+		}
+
+		FSDataInputStream in = localFS.open(new Path(localSrc));
+
+		/*
+		 * Prepare writing
+		 *
 		 * The create() method takes a Path object for the file to be created
 		 * and returns an output stream to write to. The second argument is
 		 * optional. It is used to specify the action every time the progress()
@@ -67,10 +106,15 @@ public class CopyLocalFile {
 		System.out.print("\n");
 
 		/*
-		 * Automatically close the stream after the write finishes.
+		 * Automatically close the stream after the write finishes. Reading
+		 * the next buffer overlaps with writing the previous one.
 		 */
-		IOUtils.copyBytes(in, out, BufferSize, true);
+		PipelinedCopy.copyBytes(in, checksum != null ? checksum.wrap(out)
+				: out, conf, true);
 
+		if (checksum != null) {
+			checksum.report(outFS, new Path(dst));
+		}
 	}
 
 }
@@ -0,0 +1,162 @@
+package hk.ust.comp4651;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+
+/*
+ * Copy the files of a directory tree on a pool of threads.
+ *
+ * The files are copied largest first, so that the last files to start are
+ * small ones and the threads finish about together. A file whose copy has
+ * the same length and modification time is skipped: copies keep the
+ * modification time of their source, so copying a directory again only
+ * copies what changed.
+ */
+public class DirectoryCopy {
+
+	private DirectoryCopy() {
+	}
+
+	/*
+	 * Copy the files under src to the same relative paths under dst, with
+	 * the given number of threads, checksumming each copy with algorithm
+	 * unless it is null
+	 */
+	public static void copy(final FileSystem inFS, Path src,
+			final FileSystem outFS, Path dst, int threads,
+			final String algorithm) throws IOException {
+		List<LocatedFileStatus> files = new ArrayList<LocatedFileStatus>();
+		RemoteIterator<LocatedFileStatus> it = inFS.listFiles(src, true);
+		while (it.hasNext()) {
+			files.add(it.next());
+		}
+		Collections.sort(files, new Comparator<FileStatus>() {
+			public int compare(FileStatus f1, FileStatus f2) {
+				long l1 = f1.getLen();
+				long l2 = f2.getLen();
+				return l1 > l2 ? -1 : (l1 == l2 ? 0 : 1);
+			}
+		});
+
+		String base = inFS.makeQualified(src).toUri().getPath();
+		final int prefix = base.endsWith("/") ? base.length()
+				: base.length() + 1;
+		final AtomicInteger copied = new AtomicInteger();
+		final AtomicInteger skipped = new AtomicInteger();
+		final AtomicLong bytes = new AtomicLong();
+
+		outFS.mkdirs(dst);
+		long start = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,
+				threads));
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (final FileStatus file : files) {
+				final Path target = new Path(dst, file.getPath().toUri()
+						.getPath().substring(prefix));
+				results.add(pool.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						if (isUnchanged(file, outFS, target)) {
+							skipped.incrementAndGet();
+							return null;
+						}
+						copyFile(inFS, file, outFS, target, algorithm);
+						copied.incrementAndGet();
+						bytes.addAndGet(file.getLen());
+						return null;
+					}
+				}));
+			}
+
+			IOException failure = null;
+			for (Future<Void> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause() instanceof IOException ? (IOException) e
+								.getCause() : new IOException(e.getCause());
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while copying");
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+		double mb = bytes.get() / (1024.0 * 1024.0);
+		System.out.printf("Copied %d files (%.1f MB) in %.1f s, %.1f MB/s; "
+				+ "skipped %d unchanged files\n", copied.get(), mb, seconds,
+				mb / seconds, skipped.get());
+	}
+
+	/*
+	 * Modification times are compared to the second: a local filesystem may
+	 * keep only whole seconds of the time set from HDFS
+	 */
+	private static boolean isUnchanged(FileStatus file, FileSystem outFS,
+			Path target) throws IOException {
+		if (!outFS.exists(target)) {
+			return false;
+		}
+		FileStatus copy = outFS.getFileStatus(target);
+		return copy.getLen() == file.getLen()
+				&& copy.getModificationTime() / 1000 == file
+						.getModificationTime() / 1000;
+	}
+
+	private static void copyFile(FileSystem inFS, FileStatus file,
+			FileSystem outFS, Path target, String algorithm)
+			throws IOException {
+		CopyChecksum checksum = algorithm == null ? null : new CopyChecksum(
+				algorithm, outFS, target);
+		if (LocalCopy.isLocal(inFS) && LocalCopy.isLocal(outFS)) {
+			LocalCopy.copy(inFS, file.getPath(), outFS, target, checksum);
+		} else {
+			FSDataInputStream in = inFS.open(file.getPath());
+			FSDataOutputStream out;
+			try {
+				out = outFS.create(target, true);
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+			PipelinedCopy.copyBytes(in, checksum != null ? checksum.wrap(out)
+					: out, outFS.getConf(), true);
+		}
+		outFS.setTimes(target, file.getModificationTime(), -1);
+
+		if (checksum != null) {
+			/*
+			 * Keep the lines of a file together
+			 */
+			synchronized (System.out) {
+				checksum.report(outFS, target);
+			}
+		}
+	}
+}
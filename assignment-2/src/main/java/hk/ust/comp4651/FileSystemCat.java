@@ -14,8 +14,6 @@ import org.apache.hadoop.io.IOUtils;
  */
 public class FileSystemCat {
 
-	private static final int BufferSize = 4096;
-
 	public static void main(String[] args) throws Exception {
 
 		/*
@@ -50,14 +48,15 @@ public class FileSystemCat {
 			 */
 			in = fs.open(new Path(uri));
 			/*
-			 * IOUtils is a handy class that comes with Hadoop for IO
-			 * operations. The first two arguments to the copyBytes() method
-			 * respectively specify the input and output streams; the last two
-			 * are the buffer size used for copying and whether to close the
-			 * streams when the copy is complete. Here, we choose to close the
-			 * input stream ourselves, and System.out doesn't need to be closed.
+			 * PipelinedCopy reads the file in one thread while this one
+			 * writes to System.out. The first two arguments to the
+			 * copyBytes() method respectively specify the input and output
+			 * streams; the last two are the configuration, which holds the
+			 * buffer sizes, and whether to close the streams when the copy is
+			 * complete. Here, we choose to close the input stream ourselves,
+			 * and System.out doesn't need to be closed.
 			 */
-			IOUtils.copyBytes(in, System.out, BufferSize, false);
+			PipelinedCopy.copyBytes(in, System.out, conf, false);
 		} finally {
 			IOUtils.closeStream(in);
 		}
@@ -0,0 +1,202 @@
+package hk.ust.comp4651;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.fs.ChecksumFileSystem;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.DataChecksum;
+
+/*
+ * Copy a file to another file of the local filesystem without moving the
+ * data through Java: FileChannel.transferTo() lets the kernel copy it.
+ *
+ * The local filesystem keeps a ".name.crc" checksum file next to each file
+ * it writes, and checks a file against its checksum file when reading it.
+ * Both are kept: the checksums of the copy are computed from the mapped
+ * copy, written to its checksum file, and compared with the checksum file
+ * of the source if it has one. A CopyChecksum is computed from the mapped
+ * copy as well.
+ */
+public class LocalCopy {
+
+	/*
+	 * Checksum files start with "crc\0" and the bytes per checksum, followed
+	 * by one CRC32 per chunk
+	 */
+	private static final byte[] ChecksumVersion = { 'c', 'r', 'c', 0 };
+
+	/*
+	 * The copy is mapped in windows of about 64 MB to compute its checksums
+	 */
+	private static final int Window = 1 << 26;
+
+	private LocalCopy() {
+	}
+
+	/*
+	 * Is fs the local filesystem?
+	 */
+	public static boolean isLocal(FileSystem fs) {
+		return "file".equals(fs.getUri().getScheme());
+	}
+
+	/*
+	 * Copy src of the local filesystem inFS to dst of the local filesystem
+	 * outFS, passing the copy through checksum unless it is null.
+	 */
+	public static void copy(FileSystem inFS, Path src, FileSystem outFS,
+			Path dst, CopyChecksum checksum) throws IOException {
+		File from = toFile(inFS, src);
+		File to = toFile(outFS, dst);
+		if (dst.getParent() != null) {
+			outFS.mkdirs(dst.getParent());
+		}
+
+		FileInputStream in = new FileInputStream(from);
+		FileOutputStream out = new FileOutputStream(to);
+		try {
+			FileChannel inChannel = in.getChannel();
+			FileChannel outChannel = out.getChannel();
+			long size = inChannel.size();
+			long position = 0;
+			while (position < size) {
+				position += inChannel.transferTo(position, size - position,
+						outChannel);
+			}
+		} finally {
+			IOUtils.closeStream(in);
+			IOUtils.closeStream(out);
+		}
+
+		if (outFS instanceof ChecksumFileSystem || checksum != null) {
+			try {
+				checkCopy(to, outFS, dst, inFS, src, checksum);
+			} catch (IOException e) {
+				outFS.delete(dst, false);
+				throw e;
+			}
+		}
+	}
+
+	private static File toFile(FileSystem fs, Path path) {
+		return new File(fs.makeQualified(path).toUri().getPath());
+	}
+
+	/*
+	 * Pass the mapped copy through checksum, if any, and, on a checksummed
+	 * filesystem, write the checksum file of the copy, comparing it with
+	 * the checksum file of the source, if any, as reading through the local
+	 * filesystem would
+	 */
+	private static void checkCopy(File copy, FileSystem outFS, Path dst,
+			FileSystem inFS, Path src, CopyChecksum checksum)
+			throws IOException {
+		ChecksumFileSystem checksumFS = outFS instanceof ChecksumFileSystem ? (ChecksumFileSystem) outFS
+				: null;
+		int bytesPerSum = checksumFS != null ? checksumFS.getBytesPerSum()
+				: 512;
+		DataChecksum sum = DataChecksum.newDataChecksum(
+				DataChecksum.Type.CRC32, bytesPerSum);
+		DataInputStream expected = null;
+		DataOutputStream out = null;
+		FileInputStream in = new FileInputStream(copy);
+		try {
+			if (checksumFS != null) {
+				expected = openChecksums(inFS, src, bytesPerSum);
+				out = checksumFS.getRawFileSystem().create(
+						checksumFS.getChecksumFile(dst), true);
+				out.write(ChecksumVersion);
+				out.writeInt(bytesPerSum);
+			}
+
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			int window = Window - Window % bytesPerSum;
+			byte[] sums = new byte[4 * (window / bytesPerSum)];
+			byte[] expectedSums = new byte[sums.length];
+			for (long position = 0; position < size; position += window) {
+				int length = (int) Math.min(window, size - position);
+				MappedByteBuffer data = channel.map(
+						FileChannel.MapMode.READ_ONLY, position, length);
+				if (checksum != null) {
+					checksum.update(data.duplicate());
+				}
+				if (out == null) {
+					continue;
+				}
+				int n = 4 * ((length + bytesPerSum - 1) / bytesPerSum);
+				sum.calculateChunkedSums(data, ByteBuffer.wrap(sums, 0, n));
+				out.write(sums, 0, n);
+
+				if (expected != null) {
+					expected.readFully(expectedSums, 0, n);
+					int chunk = mismatch(sums, expectedSums, n);
+					if (chunk >= 0) {
+						long offset = position + (long) chunk * bytesPerSum;
+						throw new ChecksumException("Checksum error: " + src
+								+ " at " + offset, offset);
+					}
+				}
+			}
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+		} finally {
+			IOUtils.closeStream(out);
+			IOUtils.closeStream(in);
+			IOUtils.closeStream(expected);
+		}
+	}
+
+	/*
+	 * Return the first chunk whose checksums differ, or -1
+	 */
+	private static int mismatch(byte[] sums, byte[] expected, int length) {
+		for (int i = 0; i < length; i++) {
+			if (sums[i] != expected[i]) {
+				return i / 4;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Open the checksums of the source past their header, or return null if
+	 * the source has none or they use another chunk size
+	 */
+	private static DataInputStream openChecksums(FileSystem inFS, Path src,
+			int bytesPerSum) throws IOException {
+		if (!(inFS instanceof ChecksumFileSystem)) {
+			return null;
+		}
+		ChecksumFileSystem checksumFS = (ChecksumFileSystem) inFS;
+		Path checksums = checksumFS.getChecksumFile(src);
+		FileSystem rawFS = checksumFS.getRawFileSystem();
+		if (!rawFS.exists(checksums)) {
+			return null;
+		}
+
+		DataInputStream in = rawFS.open(checksums);
+		byte[] version = new byte[ChecksumVersion.length];
+		in.readFully(version);
+		if (!Arrays.equals(version, ChecksumVersion)
+				|| in.readInt() != bytesPerSum) {
+			in.close();
+			return null;
+		}
+		return in;
+	}
+}
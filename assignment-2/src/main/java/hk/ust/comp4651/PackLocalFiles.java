@@ -0,0 +1,206 @@
+package hk.ust.comp4651;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/*
+ * Pack the files of a local directory into a few SequenceFiles on HDFS
+ *
+ * Each small file copied as is costs a NameNode entry and a map task. Packed,
+ * a file is a record of its path, relative to the source directory, and its
+ * contents, and records are block compressed into SequenceFiles of about one
+ * block each. PackedTextInputFormat of assignment 3 reads the lines of the
+ * packed files back.
+ */
+public class PackLocalFiles {
+
+	private static final String SIZE = "size";
+
+	/*
+	 * Name of the n-th packed file
+	 */
+	private static final String PackedName = "packed-%05d.seq";
+
+	/*
+	 * A file is read whole into memory to become a record, so larger files
+	 * are skipped, to be copied as is
+	 */
+	private static final long MaxFileSize = 256L << 20;
+
+	@SuppressWarnings("static-access")
+	public static void main(String[] args) throws Exception {
+
+		/*
+		 * Parse the options, which come before the source and destination.
+		 */
+		Options options = new Options();
+		options.addOption(OptionBuilder.withArgName("MB").hasArg()
+				.withDescription("size of a packed file, one block by default")
+				.create(SIZE));
+
+		CommandLine cmdline = null;
+		try {
+			CommandLineParser parser = new GnuParser();
+			cmdline = parser.parse(options, args);
+		} catch (ParseException exp) {
+			System.err.println("Error parsing command line: "
+					+ exp.getMessage());
+			System.exit(-1);
+		}
+
+		/*
+		 * Validate that two arguments are passed from the command line.
+		 */
+		if (cmdline.getArgs().length != 2) {
+			System.err.printf("Usage: PackLocalFiles "
+					+ "[-size <MB>] <src dir> <dst dir>\n");
+			System.exit(-1);
+		}
+
+		Path src = new Path(cmdline.getArgs()[0]);
+		String dst = cmdline.getArgs()[1];
+
+		Configuration conf = new Configuration();
+		LocalFileSystem localFS = LocalFileSystem.getLocal(conf);
+		FileSystem outFS = FileSystem.get(URI.create(dst), conf);
+		Path dstDir = new Path(dst);
+
+		long size = cmdline.hasOption(SIZE) ? Long.parseLong(cmdline
+				.getOptionValue(SIZE)) << 20 : outFS.getDefaultBlockSize(dstDir);
+
+		/*
+		 * Pack the files in the order of their paths, so that packing the
+		 * same files again gives the same packed files
+		 */
+		List<Path> files = new ArrayList<Path>();
+		RemoteIterator<LocatedFileStatus> it = localFS.listFiles(src, true);
+		while (it.hasNext()) {
+			files.add(it.next().getPath());
+		}
+		Collections.sort(files, new Comparator<Path>() {
+			public int compare(Path p1, Path p2) {
+				return p1.compareTo(p2);
+			}
+		});
+
+		String base = localFS.makeQualified(src).toUri().getPath();
+		int prefix = base.endsWith("/") ? base.length() : base.length() + 1;
+
+		/*
+		 * A block compressed SequenceFile buffers about this many bytes of
+		 * records before compressing and writing them, so the length of a
+		 * packed file lags behind by as much
+		 */
+		int buffered = conf.getInt("io.seqfile.compress.blocksize", 1000000);
+
+		DefaultCodec codec = ReflectionUtils.newInstance(DefaultCodec.class,
+				conf);
+		Text name = new Text();
+		BytesWritable contents = new BytesWritable();
+		SequenceFile.Writer writer = null;
+		int packed = 0;
+		int inPacked = 0;
+		int skipped = 0;
+		long bytes = 0;
+
+		outFS.mkdirs(dstDir);
+		long start = System.currentTimeMillis();
+		try {
+			for (Path file : files) {
+				long length = localFS.getFileStatus(file).getLen();
+				if (length > MaxFileSize) {
+					System.err.printf("Skipping %s (%d MB): files over %d MB "
+							+ "are not packed, copy it with CopyFile\n", file,
+							length >> 20, MaxFileSize >> 20);
+					skipped++;
+					continue;
+				}
+
+				/*
+				 * Start a new packed file when this one would outgrow the
+				 * size, unless it is empty: larger files are packed alone
+				 */
+				if (writer != null && inPacked > 0
+						&& writer.getLength() + buffered + length > size) {
+					writer.close();
+					writer = null;
+					System.out.printf("%s: %d files\n", new Path(dstDir,
+							String.format(PackedName, packed - 1)), inPacked);
+				}
+				if (writer == null) {
+					writer = SequenceFile.createWriter(conf,
+							SequenceFile.Writer.file(new Path(dstDir, String
+									.format(PackedName, packed++))),
+							SequenceFile.Writer.keyClass(Text.class),
+							SequenceFile.Writer.valueClass(BytesWritable.class),
+							SequenceFile.Writer.compression(
+									CompressionType.BLOCK, codec));
+					inPacked = 0;
+				}
+
+				/*
+				 * Grow the buffer to the exact length, setSize alone would
+				 * grow it by half again
+				 */
+				contents.setSize(0);
+				if (length > contents.getCapacity()) {
+					contents.setCapacity((int) length);
+				}
+				contents.setSize((int) length);
+				FSDataInputStream in = localFS.open(file);
+				try {
+					IOUtils.readFully(in, contents.getBytes(), 0, (int) length);
+				} finally {
+					in.close();
+				}
+				name.set(file.toUri().getPath().substring(prefix));
+				writer.append(name, contents);
+				inPacked++;
+				bytes += length;
+			}
+			if (writer != null) {
+				writer.close();
+				writer = null;
+				System.out.printf("%s: %d files\n", new Path(dstDir,
+						String.format(PackedName, packed - 1)), inPacked);
+			}
+		} finally {
+			IOUtils.closeStream(writer);
+		}
+
+		double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+		double mb = bytes / (1024.0 * 1024.0);
+		System.out.printf("Packed %d files (%.1f MB) into %d files in %.1f s, "
+				+ "%.1f MB/s\n", files.size() - skipped, mb, packed, seconds,
+				mb / seconds);
+		if (skipped > 0) {
+			System.err.printf("Skipped %d files over %d MB\n", skipped,
+					MaxFileSize >> 20);
+		}
+	}
+
+}
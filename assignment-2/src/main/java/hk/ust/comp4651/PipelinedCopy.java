@@ -0,0 +1,158 @@
+package hk.ust.comp4651;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IOUtils;
+
+/*
+ * Copy a stream with reads and writes overlapping.
+ *
+ * A reader thread fills buffers from the input while the calling thread
+ * writes the buffers filled before to the output. The two threads pass a
+ * small ring of large buffers back and forth: the reader blocks when every
+ * buffer waits to be written, so memory stays bounded however slow the
+ * output is. A failure on either side stops the other and is rethrown by
+ * the calling thread.
+ *
+ * A copy takes about as long as the slower of reading and writing, instead
+ * of the sum of both when they alternate, as with IOUtils.copyBytes().
+ */
+public class PipelinedCopy {
+
+	/*
+	 * Size of a buffer and number of buffers, the defaults being 1 MB and 4
+	 */
+	public static final String BUFFER_SIZE_KEY = "copy.pipeline.buffer.size";
+	public static final String BUFFERS_KEY = "copy.pipeline.buffers";
+
+	private static final int DefaultBufferSize = 1 << 20;
+	private static final int DefaultBuffers = 4;
+
+	/*
+	 * A filled buffer, the end of the input, or the failure of the reader
+	 */
+	private static class Chunk {
+		final byte[] buffer;
+		final int length;
+		final Throwable failure;
+
+		Chunk(byte[] buffer, int length, Throwable failure) {
+			this.buffer = buffer;
+			this.length = length;
+			this.failure = failure;
+		}
+	}
+
+	private PipelinedCopy() {
+	}
+
+	/*
+	 * Copy in to out with the buffers configured in conf, closing both
+	 * streams at the end if close is true. Returns the number of bytes
+	 * copied.
+	 */
+	public static long copyBytes(InputStream in, OutputStream out,
+			Configuration conf, boolean close) throws IOException {
+		return copyBytes(in, out, conf.getInt(BUFFER_SIZE_KEY,
+				DefaultBufferSize), conf.getInt(BUFFERS_KEY, DefaultBuffers),
+				close);
+	}
+
+	/*
+	 * Copy in to out through the given number of buffers of bufferSize
+	 * bytes, closing both streams at the end if close is true. Returns the
+	 * number of bytes copied.
+	 */
+	public static long copyBytes(final InputStream in, OutputStream out,
+			int bufferSize, int buffers, boolean close) throws IOException {
+		final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(
+				Math.max(2, buffers));
+		final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<Chunk>(
+				Math.max(2, buffers) + 1);
+		while (free.remainingCapacity() > 0) {
+			free.add(new byte[bufferSize]);
+		}
+
+		Thread reader = new Thread("PipelinedCopy reader") {
+			public void run() {
+				try {
+					while (true) {
+						byte[] buffer = free.take();
+						int length = fill(in, buffer);
+						if (length <= 0) {
+							filled.put(new Chunk(null, -1, null));
+							return;
+						}
+						filled.put(new Chunk(buffer, length, null));
+					}
+				} catch (InterruptedException e) {
+					// The writer gave up
+				} catch (Throwable t) {
+					filled.offer(new Chunk(null, -1, t));
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+
+		long copied = 0;
+		boolean done = false;
+		try {
+			while (true) {
+				Chunk chunk = filled.take();
+				if (chunk.failure != null) {
+					throw chunk.failure instanceof IOException ? (IOException) chunk.failure
+							: new IOException(chunk.failure);
+				}
+				if (chunk.length < 0) {
+					break;
+				}
+				out.write(chunk.buffer, 0, chunk.length);
+				copied += chunk.length;
+				free.put(chunk.buffer);
+			}
+			out.flush();
+			if (close) {
+				out.close();
+				out = null;
+				in.close();
+			}
+			done = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while copying");
+		} finally {
+			if (!done) {
+				reader.interrupt();
+			}
+			if (close) {
+				IOUtils.closeStream(out);
+				IOUtils.closeStream(in);
+			}
+		}
+		return copied;
+	}
+
+	/*
+	 * Read until the buffer is full or the input ends, so that the output
+	 * sees few large writes. Returns the number of bytes read, 0 at the end
+	 * of the input.
+	 */
+	private static int fill(InputStream in, byte[] buffer) throws IOException {
+		int length = 0;
+		while (length < buffer.length) {
+			int n = in.read(buffer, length, buffer.length - length);
+			if (n < 0) {
+				break;
+			}
+			length += n;
+		}
+		return length;
+	}
+}
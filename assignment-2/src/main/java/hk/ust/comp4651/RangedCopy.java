@@ -0,0 +1,200 @@
+package hk.ust.comp4651;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.Progressable;
+
+/*
+ * Copy a file as byte ranges read concurrently.
+ *
+ * The source is split into ranges of a fixed size, and a pool of threads
+ * copies each range with positioned reads into a part file next to the
+ * destination. The parts are then stitched into the destination with
+ * FileSystem.concat(), which on HDFS only moves blocks around, or, where
+ * concat is not supported, by appending them to the destination in order.
+ */
+public class RangedCopy {
+
+	/*
+	 * Positioned reads on HDFS set up a block reader per call, so they are
+	 * issued in large chunks
+	 */
+	private static final int BufferSize = 1 << 20;
+
+	private RangedCopy() {
+	}
+
+	/*
+	 * Copy src to dst with the given number of threads and range size.
+	 * HDFS can only concat parts made of full blocks, so a range size that
+	 * is a multiple of the destination block size avoids the reassembly.
+	 */
+	public static void copy(FileSystem inFS, Path src, final FileSystem outFS,
+			Path dst, int threads, final long rangeSize,
+			final Progressable progress) throws IOException {
+		if (threads < 1 || rangeSize < 1) {
+			throw new IllegalArgumentException("threads " + threads
+					+ " and range size " + rangeSize + " must be positive");
+		}
+		final long length = inFS.getFileStatus(src).getLen();
+		int ranges = (int) Math.max(1, (length + rangeSize - 1) / rangeSize);
+
+		final Path[] parts = new Path[ranges];
+		for (int i = 0; i < ranges; i++) {
+			parts[i] = new Path(dst.getParent(), String.format(
+					".%s.part-%05d", dst.getName(), i));
+		}
+
+		/*
+		 * One input stream is shared by all threads: positioned reads do not
+		 * move the stream's offset and are thread-safe
+		 */
+		final FSDataInputStream in = inFS.open(src);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,
+				Math.min(threads, ranges)));
+		boolean done = false;
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < ranges; i++) {
+				final int range = i;
+				results.add(pool.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						long start = range * rangeSize;
+						long end = Math.min(length, start + rangeSize);
+						copyRange(in, start, end, outFS.create(parts[range],
+								progress));
+						return null;
+					}
+				}));
+			}
+			waitFor(results);
+
+			stitch(outFS, parts, dst, rangeSize, progress);
+			done = true;
+		} finally {
+			pool.shutdownNow();
+			IOUtils.closeStream(in);
+			if (!done) {
+				for (Path part : parts) {
+					outFS.delete(part, false);
+				}
+			}
+		}
+	}
+
+	private static void copyRange(FSDataInputStream in, long start, long end,
+			FSDataOutputStream out) throws IOException {
+		byte[] buffer = new byte[BufferSize];
+		try {
+			long position = start;
+			while (position < end) {
+				int n = in.read(position, buffer, 0,
+						(int) Math.min(buffer.length, end - position));
+				if (n < 0) {
+					throw new IOException("Unexpected end of file at "
+							+ position);
+				}
+				out.write(buffer, 0, n);
+				position += n;
+			}
+			out.close();
+			out = null;
+		} finally {
+			IOUtils.closeStream(out);
+		}
+	}
+
+	/*
+	 * Wait for all the ranges, rethrowing the first failure
+	 */
+	private static void waitFor(List<Future<Void>> results)
+			throws IOException {
+		IOException failure = null;
+		for (Future<Void> result : results) {
+			try {
+				result.get();
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof IOException ? (IOException) e
+							.getCause() : new IOException(e.getCause());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while copying");
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/*
+	 * Join the parts into dst, removing the parts
+	 */
+	private static void stitch(FileSystem outFS, Path[] parts, Path dst,
+			long rangeSize, Progressable progress) throws IOException {
+		outFS.delete(dst, false);
+		if (parts.length > 1
+				&& rangeSize % outFS.getDefaultBlockSize(dst) == 0) {
+			try {
+				outFS.concat(parts[0],
+						Arrays.copyOfRange(parts, 1, parts.length));
+				if (!outFS.rename(parts[0], dst)) {
+					throw new IOException("Unable to rename " + parts[0]
+							+ " to " + dst);
+				}
+				return;
+			} catch (UnsupportedOperationException e) {
+				// Not supported by this file system, e.g. the local one
+			} catch (IOException e) {
+				/*
+				 * The parts are left untouched when concat refuses them,
+				 * e.g. on a file system with a different block size
+				 */
+				if (!outFS.exists(parts[parts.length - 1])) {
+					throw e;
+				}
+			}
+		}
+
+		if (parts.length == 1) {
+			if (!outFS.rename(parts[0], dst)) {
+				throw new IOException("Unable to rename " + parts[0] + " to "
+						+ dst);
+			}
+			return;
+		}
+
+		FSDataOutputStream out = outFS.create(dst, progress);
+		try {
+			for (Path part : parts) {
+				FSDataInputStream in = outFS.open(part);
+				try {
+					PipelinedCopy.copyBytes(in, out, outFS.getConf(), false);
+				} finally {
+					in.close();
+				}
+			}
+			out.close();
+			out = null;
+		} finally {
+			IOUtils.closeStream(out);
+		}
+		for (Path part : parts) {
+			outFS.delete(part, false);
+		}
+	}
+}
@@ -1,12 +1,11 @@
 package hk.ust.comp4651;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -16,17 +15,16 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.util.ToolRunner;
 
-import com.google.common.collect.Iterators;
-
 public class AnalyzeBigramCount {
 
 	private static final String INPUT = "input";
+	private static final String CACHE = "cache";
+	private static final String WORD = "word";
 
 	public static Map<PairOfStrings, IntWritable> readDirectory(Path path) {
 		FileSystem fs;
@@ -42,49 +40,73 @@ public class AnalyzeBigramCount {
 
 	public static Map<PairOfStrings, IntWritable> readDirectory(Path path,
 			FileSystem fs, int max) {
-		Map<PairOfStrings, IntWritable> map = new HashMap<PairOfStrings, IntWritable>();
+		Map<PairOfStrings, IntWritable> map = new ConcurrentHashMap<PairOfStrings, IntWritable>();
 
 		try {
-			FileStatus[] stat = fs.listStatus(path);
-			for (int i = 0; i < stat.length; i++) {
-				// skip '_log' directory
-				if (stat[i].getPath().getName().startsWith("_")) {
-					continue;
-				}
-
-				Map<PairOfStrings, IntWritable> pairs = readFile(
-						stat[i].getPath(), fs, max);
-				map.putAll(pairs);
-			}
+			// Part files are read in parallel, straight into the map
+			PartFileReader.readDirectory(path, fs, putInto(map));
 		} catch (IOException e) {
-			throw new RuntimeException("Error reading the file system!");
+			throw new RuntimeException("Error reading the file system!", e);
 		}
-		
+
 		return map;
 	}
 
 	public static Map<PairOfStrings, IntWritable> readFile(Path path,
 			FileSystem fs, int max) throws IOException {
 		Map<PairOfStrings, IntWritable> map = new HashMap<PairOfStrings, IntWritable>();
-		BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(path)));
-		try {
-			String line;
-			line = br.readLine();
-			while (line != null) {
-				String[] tokens = line.split("\\s+");
-				if (tokens.length != 3) {
-					throw new IOException("Error parsing the line: expect 3 terms delimited by tab!");
+		PartFileReader.readFile(path, fs, putInto(map));
+		return map;
+	}
+
+	/**
+	 * Reads the bigrams starting with word, with a seek per part if the
+	 * output is indexed and a full scan keeping only the records of the word
+	 * otherwise.
+	 */
+	public static Map<PairOfStrings, IntWritable> readWord(Path path,
+			FileSystem fs, String word) throws IOException {
+		final Map<PairOfStrings, IntWritable> map = new ConcurrentHashMap<PairOfStrings, IntWritable>();
+		final TextRecordScanner.Handler put = putInto(map);
+		if (BigramIndex.lookup(fs, path, word, put)) {
+			return map;
+		}
+
+		final byte[] bytes = word.getBytes("UTF-8");
+		TextRecordScanner.Handler handler = new TextRecordScanner.Handler() {
+			public boolean record(TextRecordScanner.Record record)
+					throws IOException {
+				if (record.size() > 0 && record.fieldEquals(0, bytes)) {
+					return put.record(record);
 				}
-				PairOfStrings bigram = new PairOfStrings(tokens[0], tokens[1]);
-				IntWritable count = new IntWritable(Integer.parseInt(tokens[2]));
-				map.put(bigram, count);
-				line = br.readLine();
+				return true;
 			}
-		} finally {
-			br.close();
+		};
+		PartFileReader.readDirectory(path, fs, handler);
+		return map;
+	}
+
+	private static TextRecordScanner.Handler putInto(
+			final Map<PairOfStrings, IntWritable> map) {
+		return new TextRecordScanner.Handler() {
+			public boolean record(TextRecordScanner.Record record)
+					throws IOException {
+				map.put(bigram(record), new IntWritable(count(record)));
+				return true;
+			}
+		};
+	}
+
+	private static int count(TextRecordScanner.Record record)
+			throws IOException {
+		if (record.size() != 3) {
+			throw new IOException("Error parsing the line: expect 3 terms delimited by tab!");
 		}
+		return record.intField(2);
+	}
 
-		return map;
+	private static PairOfStrings bigram(TextRecordScanner.Record record) {
+		return new PairOfStrings(record.string(0), record.string(1));
 	}
 
 	/**
@@ -96,6 +118,13 @@ public class AnalyzeBigramCount {
 
 		options.addOption(OptionBuilder.withArgName("path").hasArg()
 				.withDescription("input path").create(INPUT));
+		options.addOption(OptionBuilder.withArgName("word").hasArg()
+				.withDescription("only show the bigrams starting with this word")
+				.create(WORD));
+
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("local cache of parsed part files")
+				.create(CACHE));
 
 		CommandLine cmdline = null;
 		CommandLineParser parser = new GnuParser();
@@ -117,33 +146,61 @@ public class AnalyzeBigramCount {
 			System.exit(-1);
 		}
 
+		Configuration conf = new Configuration();
+		if (cmdline.hasOption(CACHE)) {
+			conf.set(PartCache.DIR_KEY, cmdline.getOptionValue(CACHE));
+		}
+
 		String inputPath = cmdline.getOptionValue(INPUT);
 		Path path = new Path(inputPath);
-		Map<PairOfStrings, IntWritable> bigramCounts = readDirectory(path);
-		bigramCounts = MapUtil.sortByValue(bigramCounts);
-
-		int singletons = 0;
-		int sum = 0;
-		
-		for (Map.Entry<PairOfStrings, IntWritable> entry: bigramCounts.entrySet()) {
-			sum += entry.getValue().get();
-			if (entry.getValue().get() == 1) {
-				singletons++;
+
+		if (cmdline.hasOption(WORD)) {
+			String word = cmdline.getOptionValue(WORD);
+			TopK<PairOfStrings, IntWritable> bigrams = new TopK<PairOfStrings, IntWritable>(
+					10);
+			bigrams.offerAll(readWord(path,
+					FileSystem.get(conf), word));
+
+			System.out.println("Ten most frequent bigrams starting with " + word + ":");
+
+			for (Map.Entry<PairOfStrings, IntWritable> b : bigrams.entries()) {
+				System.out.println(b.getKey() + "\t" + b.getValue());
 			}
+			return;
 		}
 
-		System.out.println("total number of unique bigrams: "
-				+ bigramCounts.size());
+		// Stream the records, only the ten most frequent bigrams are kept
+		final TopK<PairOfStrings, IntWritable> top = new TopK<PairOfStrings, IntWritable>(
+				10);
+		final AtomicLong unique = new AtomicLong();
+		final AtomicLong sum = new AtomicLong();
+		final AtomicLong singletons = new AtomicLong();
+		PartFileReader.readDirectory(path, FileSystem.get(conf),
+				new TextRecordScanner.Handler() {
+					public boolean record(TextRecordScanner.Record record)
+							throws IOException {
+						IntWritable count = new IntWritable(count(record));
+						unique.incrementAndGet();
+						sum.addAndGet(count.get());
+						if (count.get() == 1) {
+							singletons.incrementAndGet();
+						}
+						// Only decode the key of a possible top entry
+						if (top.accepts(count)) {
+							top.offer(bigram(record), count);
+						}
+						return true;
+					}
+				});
+
+		System.out.println("total number of unique bigrams: " + unique);
 		System.out.println("total number of bigrams: " + sum);
 		System.out.println("number of bigrams that appear only once: "
 				+ singletons);
 
 		System.out.println("\nten most frequent bigrams: ");
 
-		Iterator<Map.Entry<PairOfStrings, IntWritable>> iter = Iterators.limit(
-				bigramCounts.entrySet().iterator(), 10);
-		while (iter.hasNext()) {
-			Map.Entry<PairOfStrings, IntWritable> b = iter.next();
+		for (Map.Entry<PairOfStrings, IntWritable> b : top.entries()) {
 			System.out.println(b.getKey() + "\t" + b.getValue());
 		}
 	}
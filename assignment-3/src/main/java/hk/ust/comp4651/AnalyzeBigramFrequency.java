@@ -1,12 +1,12 @@
 package hk.ust.comp4651;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -16,18 +16,17 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.FloatWritable;
 import org.apache.hadoop.util.ToolRunner;
 
-import com.google.common.collect.Iterators;
-
 public class AnalyzeBigramFrequency {
 
 	private static final String INPUT = "input";
+	private static final String CACHE = "cache";
 	private static final String WORD = "word";
+	private static final String STORE = "store";
 
 	public static Map<PairOfStrings, FloatWritable> readDirectory(Path path) {
 		FileSystem fs;
@@ -43,22 +42,13 @@ public class AnalyzeBigramFrequency {
 
 	public static Map<PairOfStrings, FloatWritable> readDirectory(Path path,
 			FileSystem fs, int max) {
-		Map<PairOfStrings, FloatWritable> map = new HashMap<PairOfStrings, FloatWritable>();
+		Map<PairOfStrings, FloatWritable> map = new ConcurrentHashMap<PairOfStrings, FloatWritable>();
 
 		try {
-			FileStatus[] stat = fs.listStatus(path);
-			for (int i = 0; i < stat.length; i++) {
-				// skip '_log' directory
-				if (stat[i].getPath().getName().startsWith("_")) {
-					continue;
-				}
-
-				Map<PairOfStrings, FloatWritable> pairs = readFile(
-						stat[i].getPath(), fs, max);
-				map.putAll(pairs);
-			}
+			// Part files are read in parallel, straight into the map
+			PartFileReader.readDirectory(path, fs, putInto(map));
 		} catch (IOException e) {
-			throw new RuntimeException("Error reading the file system!");
+			throw new RuntimeException("Error reading the file system!", e);
 		}
 
 		return map;
@@ -67,33 +57,85 @@ public class AnalyzeBigramFrequency {
 	public static Map<PairOfStrings, FloatWritable> readFile(Path path,
 			FileSystem fs, int max) throws IOException {
 		Map<PairOfStrings, FloatWritable> map = new HashMap<PairOfStrings, FloatWritable>();
-		BufferedReader br = new BufferedReader(new InputStreamReader(
-				fs.open(path)));
-		try {
-			String line;
-			line = br.readLine();
-			while (line != null) {
-				String[] tokens = line.split("\\s+");
+		PartFileReader.readFile(path, fs, putInto(map));
+		return map;
+	}
+
+	/**
+	 * Reads the bigrams starting with word. Indexed output is read with a
+	 * seek per part and output in total order from the one part that can
+	 * hold the word; any other output is scanned in full, keeping only the
+	 * records of the word.
+	 */
+	public static Map<PairOfStrings, FloatWritable> readWord(Path path,
+			FileSystem fs, String word) throws IOException {
+		final Map<PairOfStrings, FloatWritable> map = new ConcurrentHashMap<PairOfStrings, FloatWritable>();
+		final TextRecordScanner.Handler put = putInto(map);
+		if (BigramIndex.lookup(fs, path, word, put)) {
+			return map;
+		}
+
+		final byte[] bytes = word.getBytes("UTF-8");
+		TextRecordScanner.Handler handler = new TextRecordScanner.Handler() {
+			public boolean record(TextRecordScanner.Record record)
+					throws IOException {
+				if (record.size() > 0 && record.fieldEquals(0, bytes)) {
+					return put.record(record);
+				}
+				return true;
+			}
+		};
+		LeftWordRanges ranges = LeftWordRanges.readManifest(fs, path);
+		if (ranges != null) {
+			PartFileReader.readFile(ranges.partFor(path, word), fs, handler);
+		} else {
+			PartFileReader.readDirectory(path, fs, handler);
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the k most frequent bigrams starting with word from a
+	 * {@link BigramStore}, in the order of {@link MapUtil#sortByValue}.
+	 */
+	public static Map<PairOfStrings, FloatWritable> topWord(BigramStore store,
+			String word, int k) {
+		Map<PairOfStrings, FloatWritable> top = new LinkedHashMap<PairOfStrings, FloatWritable>();
+		int l = store.leftIndex(word);
+		if (l < 0) {
+			return top;
+		}
+		int n = Math.min(k, store.endPair(l) - store.firstPair(l));
+		for (int rank = 0; rank < n; rank++) {
+			int pair = store.topPair(l, rank);
+			top.put(new PairOfStrings(word, store.right(pair)),
+					new FloatWritable(store.value(pair)));
+		}
+		return top;
+	}
+
+	private static TextRecordScanner.Handler putInto(
+			final Map<PairOfStrings, FloatWritable> map) {
+		return new TextRecordScanner.Handler() {
+			public boolean record(TextRecordScanner.Record record)
+					throws IOException {
 				PairOfStrings bigram = null;
 				FloatWritable freq = null;
-				if (tokens.length == 2) {
-					bigram = new PairOfStrings(tokens[0], "");
-					freq = new FloatWritable(Float.parseFloat(tokens[1]));
-				} else if (tokens.length == 3) {
-					bigram = new PairOfStrings(tokens[0], tokens[1]);
-					freq = new FloatWritable(Float.parseFloat(tokens[2]));
+				if (record.size() == 2) {
+					bigram = new PairOfStrings(record.string(0), "");
+					freq = new FloatWritable(record.floatField(1));
+				} else if (record.size() == 3) {
+					bigram = new PairOfStrings(record.string(0),
+							record.string(1));
+					freq = new FloatWritable(record.floatField(2));
 				} else {
 					throw new IOException(
 							"Error parsing the line: expect 2 or 3 terms delimited by tab!");
 				}
 				map.put(bigram, freq);
-				line = br.readLine();
+				return true;
 			}
-		} finally {
-			br.close();
-		}
-
-		return map;
+		};
 	}
 
 	/**
@@ -109,6 +151,14 @@ public class AnalyzeBigramFrequency {
 		options.addOption(OptionBuilder.withArgName("word").hasArg()
 				.withDescription("input path").create(WORD));
 
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("local bigram store, instead of the input path")
+				.create(STORE));
+
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("local cache of parsed part files")
+				.create(CACHE));
+
 		CommandLine cmdline = null;
 		CommandLineParser parser = new GnuParser();
 
@@ -120,7 +170,8 @@ public class AnalyzeBigramFrequency {
 			System.exit(-1);
 		}
 
-		if (!cmdline.hasOption(INPUT) || !cmdline.hasOption(WORD)) {
+		if ((!cmdline.hasOption(INPUT) && !cmdline.hasOption(STORE))
+				|| !cmdline.hasOption(WORD)) {
 			System.out.println("args: " + Arrays.toString(args));
 			HelpFormatter formatter = new HelpFormatter();
 			formatter.setWidth(120);
@@ -130,27 +181,31 @@ public class AnalyzeBigramFrequency {
 			System.exit(-1);
 		}
 
-		String inputPath = cmdline.getOptionValue(INPUT);
-		Path path = new Path(inputPath);
-		Map<PairOfStrings, FloatWritable> bigramFrequency = readDirectory(path);
-			
-		String word = cmdline.getOptionValue(WORD);
-		Map<PairOfStrings, FloatWritable> bigrams = new HashMap<PairOfStrings, FloatWritable>();
-		for (Map.Entry<PairOfStrings, FloatWritable> entry : bigramFrequency
-				.entrySet()) {
-			if (entry.getKey().getLeftElement().equals(word)) {
-				bigrams.put(entry.getKey(), entry.getValue());
-			}
+		Configuration conf = new Configuration();
+		if (cmdline.hasOption(CACHE)) {
+			conf.set(PartCache.DIR_KEY, cmdline.getOptionValue(CACHE));
 		}
 
-		bigrams = MapUtil.sortByValue(bigrams);
+		String word = cmdline.getOptionValue(WORD);
+
+		// The marginal comes first, followed by ten bigrams
+		Iterable<Map.Entry<PairOfStrings, FloatWritable>> entries;
+		if (cmdline.hasOption(STORE)) {
+			BigramStore store = BigramStore.open(new File(cmdline
+					.getOptionValue(STORE)));
+			entries = topWord(store, word, 11).entrySet();
+		} else {
+			Path path = new Path(cmdline.getOptionValue(INPUT));
+			TopK<PairOfStrings, FloatWritable> bigrams = new TopK<PairOfStrings, FloatWritable>(
+					11);
+			bigrams.offerAll(readWord(path,
+					FileSystem.get(conf), word));
+			entries = bigrams.entries();
+		}
 
 		System.out.println("Ten most frequent bigrams starting with " + word + ":");
 
-		Iterator<Map.Entry<PairOfStrings, FloatWritable>> iter = Iterators.limit(
-				bigrams.entrySet().iterator(), 11);
-		while (iter.hasNext()) {
-			Map.Entry<PairOfStrings, FloatWritable> b = iter.next();
+		for (Map.Entry<PairOfStrings, FloatWritable> b : entries) {
 			System.out.println(b.getKey() + "\t" + b.getValue());
 		}
 	}
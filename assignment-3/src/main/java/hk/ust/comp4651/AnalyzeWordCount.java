@@ -1,12 +1,11 @@
 package hk.ust.comp4651;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -16,17 +15,15 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.util.ToolRunner;
 
-import com.google.common.collect.Iterators;
-
 public class AnalyzeWordCount {
 
 	private static final String INPUT = "input";
+	private static final String CACHE = "cache";
 
 	public static Map<String, IntWritable> readDirectory(Path path) {
 		FileSystem fs;
@@ -42,49 +39,42 @@ public class AnalyzeWordCount {
 
 	public static Map<String, IntWritable> readDirectory(Path path,
 			FileSystem fs, int max) {
-		Map<String, IntWritable> map = new HashMap<String, IntWritable>();
+		Map<String, IntWritable> map = new ConcurrentHashMap<String, IntWritable>();
 
 		try {
-			FileStatus[] stat = fs.listStatus(path);
-			for (int i = 0; i < stat.length; i++) {
-				// skip '_log' directory
-				if (stat[i].getPath().getName().startsWith("_")) {
-					continue;
-				}
-
-				Map<String, IntWritable> pairs = readFile(
-						stat[i].getPath(), fs, max);
-				map.putAll(pairs);
-			}
+			// Part files are read in parallel, straight into the map
+			PartFileReader.readDirectory(path, fs, putInto(map));
 		} catch (IOException e) {
-			throw new RuntimeException("Error reading the file system!");
+			throw new RuntimeException("Error reading the file system!", e);
 		}
-		
+
 		return map;
 	}
 
 	public static Map<String, IntWritable> readFile(Path path,
 			FileSystem fs, int max) throws IOException {
 		Map<String, IntWritable> map = new HashMap<String, IntWritable>();
-		BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(path)));
-		try {
-			String line;
-			line = br.readLine();
-			while (line != null) {
-				String[] tokens = line.split("\\s+");
-				if (tokens.length != 2) {
-					throw new IOException("Error parsing the line: expect 2 terms delimited by tab!");
-				}
-				String word = tokens[0];
-				IntWritable count = new IntWritable(Integer.parseInt(tokens[1]));
-				map.put(word, count);
-				line = br.readLine();
+		PartFileReader.readFile(path, fs, putInto(map));
+		return map;
+	}
+
+	private static TextRecordScanner.Handler putInto(
+			final Map<String, IntWritable> map) {
+		return new TextRecordScanner.Handler() {
+			public boolean record(TextRecordScanner.Record record)
+					throws IOException {
+				map.put(record.string(0), new IntWritable(count(record)));
+				return true;
 			}
-		} finally {
-			br.close();
-		}
+		};
+	}
 
-		return map;
+	private static int count(TextRecordScanner.Record record)
+			throws IOException {
+		if (record.size() != 2) {
+			throw new IOException("Error parsing the line: expect 2 terms delimited by tab!");
+		}
+		return record.intField(1);
 	}
 
 	/**
@@ -97,6 +87,10 @@ public class AnalyzeWordCount {
 		options.addOption(OptionBuilder.withArgName("path").hasArg()
 				.withDescription("input path").create(INPUT));
 
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("local cache of parsed part files")
+				.create(CACHE));
+
 		CommandLine cmdline = null;
 		CommandLineParser parser = new GnuParser();
 
@@ -117,33 +111,45 @@ public class AnalyzeWordCount {
 			System.exit(-1);
 		}
 
+		Configuration conf = new Configuration();
+		if (cmdline.hasOption(CACHE)) {
+			conf.set(PartCache.DIR_KEY, cmdline.getOptionValue(CACHE));
+		}
+
 		String inputPath = cmdline.getOptionValue(INPUT);
 		Path path = new Path(inputPath);
-		Map<String, IntWritable> wordCounts = readDirectory(path);
-		wordCounts = MapUtil.sortByValue(wordCounts);
-
-		int singletons = 0;
-		int sum = 0;
-		
-		for (Map.Entry<String, IntWritable> entry: wordCounts.entrySet()) {
-			sum += entry.getValue().get();
-			if (entry.getValue().get() == 1) {
-				singletons++;
-			}
-		}
 
-		System.out.println("total number of unique words: "
-				+ wordCounts.size());
+		// Stream the records, only the ten most frequent words are kept
+		final TopK<String, IntWritable> top = new TopK<String, IntWritable>(10);
+		final AtomicLong unique = new AtomicLong();
+		final AtomicLong sum = new AtomicLong();
+		final AtomicLong singletons = new AtomicLong();
+		PartFileReader.readDirectory(path, FileSystem.get(conf),
+				new TextRecordScanner.Handler() {
+					public boolean record(TextRecordScanner.Record record)
+							throws IOException {
+						IntWritable count = new IntWritable(count(record));
+						unique.incrementAndGet();
+						sum.addAndGet(count.get());
+						if (count.get() == 1) {
+							singletons.incrementAndGet();
+						}
+						// Only decode the key of a possible top entry
+						if (top.accepts(count)) {
+							top.offer(record.string(0), count);
+						}
+						return true;
+					}
+				});
+
+		System.out.println("total number of unique words: " + unique);
 		System.out.println("total number of words: " + sum);
 		System.out.println("number of words that appear only once: "
 				+ singletons);
 
 		System.out.println("\nten most frequent words: ");
 
-		Iterator<Map.Entry<String, IntWritable>> iter = Iterators.limit(
-				wordCounts.entrySet().iterator(), 10);
-		while (iter.hasNext()) {
-			Map.Entry<String, IntWritable> b = iter.next();
+		for (Map.Entry<String, IntWritable> b : top.entries()) {
 			System.out.println(b.getKey() + "\t" + b.getValue());
 		}
 	}
@@ -23,6 +23,7 @@ import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.CombineTextInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.Tool;
@@ -39,52 +40,47 @@ public class BigramCountPairs extends Configured implements Tool {
 	 * Mapper: emits <bigram, 1>, where bigram = (leftWord, rightWord)
 	 */
 	private static class MyMapper extends
-			Mapper<LongWritable, Text, PairOfStrings, IntWritable> {
+			Mapper<LongWritable, Text, PairOfTexts, IntWritable> {
 
 		// Reuse objects to save overhead of object creation.
 		private static final IntWritable ONE = new IntWritable(1);
-		private static final PairOfStrings BIGRAM = new PairOfStrings();
+		private static final PairOfTexts BIGRAM = new PairOfTexts();
+		private final TextTokenizer tokenizer = new TextTokenizer();
+		private Text left = new Text();
+		private Text right = new Text();
 		
 		@Override
 		public void map(LongWritable key, Text value, Context context)
 				throws IOException, InterruptedException {
-			String line = ((Text) value).toString();
-			String[] words = line.trim().split("\\s+");
+			tokenizer.reset(value);
 
-			/*
-			 * TODO: Your implementation goes here
-			 */
-			for (int i = 0; i < words.length - 1; i++) {
-				// skip empty words
-				if (words[i].length() == 0)
-					continue;
-				
-				// loop to find the adjacent word
-				for (int j = i + 1; j < words.length; j++) {
-					// skip empty words
-					if (words[j].length() == 0)
-						continue;
-					else {
-						BIGRAM.set(words[i], words[j]);
-						context.write(BIGRAM, ONE);
-						break;
-					}
+			// The previous token becomes the left word, swap the buffers
+			boolean hasLeft = false;
+			while (tokenizer.next()) {
+				tokenizer.token(right);
+				if (hasLeft) {
+					BIGRAM.set(left, right);
+					context.write(BIGRAM, ONE);
 				}
-			}
+				Text tmp = left;
+				left = right;
+				right = tmp;
+				hasLeft = true;
 			}
 		}
+	}
 
 	/*
 	 * Reducer: aggregate bigram counts
 	 */
 	private static class MyReducer extends
-			Reducer<PairOfStrings, IntWritable, PairOfStrings, IntWritable> {
+			Reducer<PairOfTexts, IntWritable, PairOfTexts, IntWritable> {
 
 		// Reuse objects.
 		private final static IntWritable SUM = new IntWritable();
 
 		@Override
-		public void reduce(PairOfStrings key, Iterable<IntWritable> values,
+		public void reduce(PairOfTexts key, Iterable<IntWritable> values,
 				Context context) throws IOException, InterruptedException {
 			/*
 			 * TODO: Your implementation goes here. The output must be a
@@ -105,15 +101,133 @@ public class BigramCountPairs extends Configured implements Tool {
 	 * the same reducer.
 	 */
 	private static class MyPartitioner extends
-			Partitioner<PairOfStrings, IntWritable> {
+			Partitioner<PairOfTexts, IntWritable> {
 		@Override
-		public int getPartition(PairOfStrings key, IntWritable value,
+		public int getPartition(PairOfTexts key, IntWritable value,
 				int numReduceTasks) {
-			return (key.getLeftElement().hashCode() & Integer.MAX_VALUE)
+			return (key.leftHashCode() & Integer.MAX_VALUE)
 					% numReduceTasks;
 		}
 	}
 
+	/*
+	 * Mapper for the vocabulary mode: emits <(leftId << 32 | rightId), 1>,
+	 * where the ids come from the vocabulary in the distributed cache.
+	 */
+	private static class MyEncodedMapper extends
+			Mapper<LongWritable, Text, LongWritable, IntWritable> {
+
+		// Reuse objects to save overhead of object creation.
+		private static final IntWritable ONE = new IntWritable(1);
+		private static final LongWritable BIGRAM = new LongWritable();
+		private static final Text WORD = new Text();
+		private final TextTokenizer tokenizer = new TextTokenizer();
+		private Vocabulary vocabulary;
+
+		@Override
+		public void setup(Context context) throws IOException {
+			vocabulary = Vocabulary.fromCache(context);
+		}
+
+		@Override
+		public void map(LongWritable key, Text value, Context context)
+				throws IOException, InterruptedException {
+			tokenizer.reset(value);
+
+			int left = -1;
+			while (tokenizer.next()) {
+				tokenizer.token(WORD);
+				int right = vocabulary.id(WORD);
+				if (right < 0) {
+					// Unknown word: drop the bigrams it takes part in
+					context.getCounter(Vocabulary.Counter.OUT_OF_VOCABULARY)
+							.increment(1);
+				} else if (left >= 0) {
+					BIGRAM.set((long) left << 32 | right);
+					context.write(BIGRAM, ONE);
+				}
+				left = right;
+			}
+		}
+	}
+
+	/*
+	 * Combiner for the vocabulary mode: aggregates counts of packed bigrams
+	 */
+	private static class MyEncodedCombiner extends
+			Reducer<LongWritable, IntWritable, LongWritable, IntWritable> {
+
+		// Reuse objects.
+		private final static IntWritable SUM = new IntWritable();
+
+		@Override
+		public void reduce(LongWritable key, Iterable<IntWritable> values,
+				Context context) throws IOException, InterruptedException {
+			Iterator<IntWritable> iter = values.iterator();
+			int sum = 0;
+			while (iter.hasNext())
+				sum += iter.next().get();
+			SUM.set(sum);
+			context.write(key, SUM);
+		}
+	}
+
+	/*
+	 * Reducer for the vocabulary mode: sums the counts and decodes the packed
+	 * ids back into words. Ids follow word order, so each part is sorted as in
+	 * the default mode, but the parts split the left words by id instead of
+	 * by hash.
+	 */
+	private static class MyEncodedReducer extends
+			Reducer<LongWritable, IntWritable, PairOfTexts, IntWritable> {
+
+		// Reuse objects.
+		private final static IntWritable SUM = new IntWritable();
+		private final static PairOfTexts BIGRAM = new PairOfTexts();
+		private final static Text LEFT = new Text();
+		private final static Text RIGHT = new Text();
+		private Vocabulary vocabulary;
+		private int leftId = -1;
+
+		@Override
+		public void setup(Context context) throws IOException {
+			vocabulary = Vocabulary.fromCache(context);
+		}
+
+		@Override
+		public void reduce(LongWritable key, Iterable<IntWritable> values,
+				Context context) throws IOException, InterruptedException {
+			Iterator<IntWritable> iter = values.iterator();
+			int sum = 0;
+			while (iter.hasNext())
+				sum += iter.next().get();
+
+			// Consecutive keys mostly share the left word, decode it once
+			int left = (int) (key.get() >>> 32);
+			if (left != leftId) {
+				leftId = left;
+				vocabulary.word(left, LEFT);
+			}
+			vocabulary.word((int) key.get(), RIGHT);
+			BIGRAM.set(LEFT, RIGHT);
+			SUM.set(sum);
+			context.write(BIGRAM, SUM);
+		}
+	}
+
+	/*
+	 * Partitioner for the vocabulary mode: partitions on the left word id,
+	 * which sends a left word to another part than the default partitioner
+	 */
+	private static class MyEncodedPartitioner extends
+			Partitioner<LongWritable, IntWritable> {
+		@Override
+		public int getPartition(LongWritable key, IntWritable value,
+				int numReduceTasks) {
+			return (int) (key.get() >>> 32) % numReduceTasks;
+		}
+	}
+
 	/**
 	 * Creates an instance of this tool.
 	 */
@@ -123,6 +237,11 @@ public class BigramCountPairs extends Configured implements Tool {
 	private static final String INPUT = "input";
 	private static final String OUTPUT = "output";
 	private static final String NUM_REDUCERS = "numReducers";
+	private static final String PACKED = "packed";
+	private static final String COMBINE = "combine";
+	private static final String VOCABULARY = "vocabulary";
+	private static final String SKEW_AWARE = "skewAware";
+	private static final String INDEXED = "indexed";
 
 	/**
 	 * Runs this tool.
@@ -137,6 +256,22 @@ public class BigramCountPairs extends Configured implements Tool {
 				.withDescription("output path").create(OUTPUT));
 		options.addOption(OptionBuilder.withArgName("num").hasArg()
 				.withDescription("number of reducers").create(NUM_REDUCERS));
+		options.addOption(OptionBuilder
+				.withDescription("read text files packed into SequenceFiles by PackLocalFiles")
+				.create(PACKED));
+		options.addOption(OptionBuilder.withArgName("MB").hasArg()
+				.withDescription("group many input files per split, up to this size")
+				.create(COMBINE));
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("vocabulary built by BuildVocabulary, shuffles packed word ids"
+						+ " (parts are sorted, but split the left words by id rather than hash)")
+				.create(VOCABULARY));
+		options.addOption(OptionBuilder
+				.withDescription("balance reducers with a sampled left-word histogram")
+				.create(SKEW_AWARE));
+		options.addOption(OptionBuilder
+				.withDescription("write sorted parts with a sparse left-word index for fast lookups")
+				.create(INDEXED));
 
 		CommandLine cmdline;
 		CommandLineParser parser = new GnuParser();
@@ -164,11 +299,27 @@ public class BigramCountPairs extends Configured implements Tool {
 		String outputPath = cmdline.getOptionValue(OUTPUT);
 		int reduceTasks = cmdline.hasOption(NUM_REDUCERS) ? Integer
 				.parseInt(cmdline.getOptionValue(NUM_REDUCERS)) : 1;
+		boolean packed = cmdline.hasOption(PACKED);
+		long combineSize = cmdline.hasOption(COMBINE) ? Long
+				.parseLong(cmdline.getOptionValue(COMBINE)) << 20 : 0;
+		String vocabularyPath = cmdline.getOptionValue(VOCABULARY);
+		boolean skewAware = cmdline.hasOption(SKEW_AWARE);
+		boolean indexed = cmdline.hasOption(INDEXED);
+		if ((skewAware || indexed) && vocabularyPath != null) {
+			System.err.println("-" + SKEW_AWARE + " and -" + INDEXED
+					+ " cannot be combined with -" + VOCABULARY);
+			return -1;
+		}
 
 		LOG.info("Tool: " + BigramCountPairs.class.getSimpleName());
 		LOG.info(" - input path: " + inputPath);
 		LOG.info(" - output path: " + outputPath);
 		LOG.info(" - number of reducers: " + reduceTasks);
+		LOG.info(" - packed input: " + packed);
+		LOG.info(" - combined split size: " + combineSize);
+		LOG.info(" - vocabulary: " + vocabularyPath);
+		LOG.info(" - skew-aware partitioning: " + skewAware);
+		LOG.info(" - indexed output: " + indexed);
 
 		// Create and configure a MapReduce job
 		Configuration conf = getConf();
@@ -179,21 +330,50 @@ public class BigramCountPairs extends Configured implements Tool {
 		job.setNumReduceTasks(reduceTasks);
 
 		FileInputFormat.setInputPaths(job, new Path(inputPath));
+		if (combineSize > 0) {
+			// Splits of many files, by node and rack of their blocks
+			job.setInputFormatClass(packed ? CombinePackedTextInputFormat.class
+					: CombineTextInputFormat.class);
+			FileInputFormat.setMaxInputSplitSize(job, combineSize);
+		} else if (packed) {
+			job.setInputFormatClass(PackedTextInputFormat.class);
+		}
 		FileOutputFormat.setOutputPath(job, new Path(outputPath));
 
-		job.setMapOutputKeyClass(PairOfStrings.class);
 		job.setMapOutputValueClass(IntWritable.class);
-		job.setOutputKeyClass(PairOfStrings.class);
+		job.setOutputKeyClass(PairOfTexts.class);
 		job.setOutputValueClass(FloatWritable.class);
 
 		/*
 		 * A MapReduce program consists of four components: a mapper, a reducer,
 		 * an optional combiner, and an optional partitioner.
 		 */
-		job.setMapperClass(MyMapper.class);
-		job.setReducerClass(MyReducer.class);
-		job.setCombinerClass(MyReducer.class);
-		job.setPartitionerClass(MyPartitioner.class);
+		if (vocabularyPath != null) {
+			// Shuffle fixed-width packed ids, decoded by the reducer
+			Vocabulary.addToCache(job, new Path(vocabularyPath));
+			job.setMapOutputKeyClass(LongWritable.class);
+			job.setMapperClass(MyEncodedMapper.class);
+			job.setReducerClass(MyEncodedReducer.class);
+			job.setCombinerClass(MyEncodedCombiner.class);
+			job.setPartitionerClass(MyEncodedPartitioner.class);
+		} else {
+			job.setMapOutputKeyClass(PairOfTexts.class);
+			job.setMapperClass(MyMapper.class);
+			job.setReducerClass(MyReducer.class);
+			job.setCombinerClass(MyReducer.class);
+			job.setPartitionerClass(MyPartitioner.class);
+		}
+
+		if (indexed) {
+			// Pairs reach the reducer sorted, ready to be indexed
+			job.setOutputFormatClass(IndexedTextOutputFormat.class);
+		}
+
+		Path partitionFile = new Path(outputPath + "_partitions");
+		if (skewAware) {
+			// Sample the input and plan the partitions before the job starts
+			SkewAwarePartitioner.writePartitionFile(job, partitionFile);
+		}
 
 		// Delete the output directory if it exists already.
 		Path outputDir = new Path(outputPath);
@@ -201,7 +381,14 @@ public class BigramCountPairs extends Configured implements Tool {
 
 		// Time the program
 		long startTime = System.currentTimeMillis();
-		job.waitForCompletion(true);
+		try {
+			job.waitForCompletion(true);
+		} finally {
+			// The plan is only read by the tasks of this job
+			if (skewAware) {
+				partitionFile.getFileSystem(conf).delete(partitionFile, false);
+			}
+		}
 		LOG.info("Job Finished in " + (System.currentTimeMillis() - startTime)
 				/ 1000.0 + " seconds");
 
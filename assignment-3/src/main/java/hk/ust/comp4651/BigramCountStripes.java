@@ -21,6 +21,7 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.CombineTextInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.Tool;
@@ -38,78 +39,150 @@ public class BigramCountStripes extends Configured implements Tool {
 	 * Mapper: emits <word, stripe> where stripe is a hash map
 	 */
 	private static class MyMapper extends
-			Mapper<LongWritable, Text, Text, HashMapStringIntWritable> {
+			Mapper<LongWritable, Text, Text, OpenHashMapStringIntWritable> {
 
 		// Reuse objects to save overhead of object creation.
-		private static final Text KEY = new Text();
-		private static final HashMapStringIntWritable STRIPE = new HashMapStringIntWritable();
+		private static final OpenHashMapStringIntWritable STRIPE = new OpenHashMapStringIntWritable();
+		private Text left = new Text();
+		private Text right = new Text();
+
+		private final TextTokenizer tokenizer = new TextTokenizer();
 
 		@Override
 		public void map(LongWritable key, Text value, Context context)
 				throws IOException, InterruptedException {
-			String line = ((Text) value).toString();
-			String[] words = line.trim().split("\\s+");
+			tokenizer.reset(value);
 
-			/*
-			 * TODO: Your implementation goes here
-			 */
-			for (int i = 0; i < words.length - 1; i++){
-				//skip empty words
-				if (words[i].length() == 0)
-					continue;
-				
-				// inner loop to find adjacent word
-				for (int j = i + 1; j < words.length; j++){
-					if (words[j].length() == 0)
-						continue;
-					else {
-						STRIPE.clear();
-						STRIPE.increment(words[j]);
-						KEY.set(words[i]);
-						context.write(KEY, STRIPE);
-						break;
-					}
+			// The previous token becomes the left word, swap the buffers
+			boolean hasLeft = false;
+			while (tokenizer.next()) {
+				tokenizer.token(right);
+				if (hasLeft) {
+					STRIPE.clear();
+					STRIPE.increment(right, 1);
+					context.write(left, STRIPE);
 				}
+				Text tmp = left;
+				left = right;
+				right = tmp;
+				hasLeft = true;
 			}
 		}
 	}
 
+	/*
+	 * Mapper for the in-mapper combining mode: aggregates stripes across all
+	 * lines of the split and emits each left word's stripe once.
+	 */
+	private static class MyInMapperCombiningMapper extends
+			Mapper<LongWritable, Text, Text, OpenHashMapStringIntWritable> {
+
+		private final TextTokenizer tokenizer = new TextTokenizer();
+		private StripeAggregator stripes;
+		private Text left = new Text();
+		private Text right = new Text();
+
+		@Override
+		public void setup(Context context) {
+			stripes = new StripeAggregator(context.getConfiguration());
+		}
+
+		@Override
+		public void map(LongWritable key, Text value, Context context)
+				throws IOException, InterruptedException {
+			tokenizer.reset(value);
+
+			// The previous token becomes the left word, swap the buffers
+			boolean hasLeft = false;
+			long bigrams = 0;
+			while (tokenizer.next()) {
+				tokenizer.token(right);
+				if (hasLeft) {
+					stripes.add(left, right, 1);
+					bigrams++;
+				}
+				Text tmp = left;
+				left = right;
+				right = tmp;
+				hasLeft = true;
+			}
+			context.getCounter(StripeAggregator.Counter.INPUT_BIGRAMS).increment(
+					bigrams);
+
+			if (stripes.isFull()) {
+				stripes.flush(context);
+			}
+		}
+
+		@Override
+		public void cleanup(Context context) throws IOException,
+				InterruptedException {
+			stripes.flush(context);
+		}
+	}
+
 	/*
 	 * Reducer: aggregate all stripes associated with each key
 	 */
 	private static class MyReducer extends
-			Reducer<Text, HashMapStringIntWritable, PairOfStrings, IntWritable> {
+			Reducer<Text, OpenHashMapStringIntWritable, PairOfTexts, IntWritable> {
 
 		// Reuse objects.
-		private final static HashMapStringIntWritable SUM_STRIPES = new HashMapStringIntWritable();
-		private final static PairOfStrings BIGRAM = new PairOfStrings();
+		private final static OpenHashMapStringIntWritable SUM_STRIPES = new OpenHashMapStringIntWritable();
+		private final static PairOfTexts BIGRAM = new PairOfTexts();
+		private final static Text RIGHT = new Text();
 		private final static IntWritable COUNT = new IntWritable();
 
+		private final boolean sortByRightWord;
+
+		private MyReducer() {
+			this(false);
+		}
+
+		protected MyReducer(boolean sortByRightWord) {
+			this.sortByRightWord = sortByRightWord;
+		}
+
 		@Override
 		public void reduce(Text key,
-				Iterable<HashMapStringIntWritable> stripes, Context context)
+				Iterable<OpenHashMapStringIntWritable> stripes, Context context)
 				throws IOException, InterruptedException {
 			/*
 			 * TODO: Your implementation goes here. Hint: You can add up two
 			 * stripes using the plus() method. Please refer to the
-			 * implementation of HashMapStringIntWritable for details.
+			 * implementation of OpenHashMapStringIntWritable for details.
 			 */
-			Iterator<HashMapStringIntWritable> iter = stripes.iterator();
+			Iterator<OpenHashMapStringIntWritable> iter = stripes.iterator();
 			while(iter.hasNext()){
 				SUM_STRIPES.plus(iter.next());
 			}
+			if (sortByRightWord) {
+				SUM_STRIPES.sortByKey();
+			}
 			/*
 			 * The output must be a sequence of key-value pairs of <bigram,
 			 * count>, the same as that of the "pairs" approach
 			 */
-			for (String str : SUM_STRIPES.keySet()){
-				COUNT.set(SUM_STRIPES.get(str));
-				BIGRAM.set(key.toString(), str);
+			for (int i = 0; i < SUM_STRIPES.size(); i++){
+				SUM_STRIPES.keyAt(i, RIGHT);
+				COUNT.set(SUM_STRIPES.valueAt(i));
+				BIGRAM.set(key, RIGHT);
 				context.write(BIGRAM, COUNT);
 			}
 			SUM_STRIPES.clear();
 		}			
 	}
+
+	/*
+	 * Reducer for the indexed mode: also sorts the pairs of each left word by
+	 * right word, so the output is sorted like that of the pairs job.
+	 */
+	private static class MySortedReducer extends MyReducer {
+
+		private MySortedReducer() {
+			super(true);
+		}
+	}
 	
 
 	/*
@@ -117,18 +190,18 @@ public class BigramCountStripes extends Configured implements Tool {
 	 */
 	private static class MyCombiner
 			extends
-			Reducer<Text, HashMapStringIntWritable, Text, HashMapStringIntWritable> {
+			Reducer<Text, OpenHashMapStringIntWritable, Text, OpenHashMapStringIntWritable> {
 		// Reuse objects.
-		private final static HashMapStringIntWritable SUM_STRIPES = new HashMapStringIntWritable();
+		private final static OpenHashMapStringIntWritable SUM_STRIPES = new OpenHashMapStringIntWritable();
 
 		@Override
 		public void reduce(Text key,
-				Iterable<HashMapStringIntWritable> stripes, Context context)
+				Iterable<OpenHashMapStringIntWritable> stripes, Context context)
 				throws IOException, InterruptedException {
 			/*
 			 * TODO: Your implementation goes here
 			 */
-			Iterator<HashMapStringIntWritable> iter = stripes.iterator();
+			Iterator<OpenHashMapStringIntWritable> iter = stripes.iterator();
 			SUM_STRIPES.clear();
 			while(iter.hasNext())
 				SUM_STRIPES.plus(iter.next());  
@@ -147,6 +220,10 @@ public class BigramCountStripes extends Configured implements Tool {
 	private static final String INPUT = "input";
 	private static final String OUTPUT = "output";
 	private static final String NUM_REDUCERS = "numReducers";
+	private static final String PACKED = "packed";
+	private static final String COMBINE = "combine";
+	private static final String IN_MAPPER_COMBINING = "inMapperCombining";
+	private static final String INDEXED = "indexed";
 
 	/**
 	 * Runs this tool.
@@ -161,6 +238,20 @@ public class BigramCountStripes extends Configured implements Tool {
 				.withDescription("output path").create(OUTPUT));
 		options.addOption(OptionBuilder.withArgName("num").hasArg()
 				.withDescription("number of reducers").create(NUM_REDUCERS));
+		options.addOption(OptionBuilder
+				.withDescription("read text files packed into SequenceFiles by PackLocalFiles")
+				.create(PACKED));
+		options.addOption(OptionBuilder.withArgName("MB").hasArg()
+				.withDescription("group many input files per split, up to this size")
+				.create(COMBINE));
+		options.addOption(OptionBuilder
+				.withDescription("aggregate stripes across records inside the mapper (thresholds: -D "
+						+ StripeAggregator.MAX_ENTRIES_KEY + ", -D "
+						+ StripeAggregator.MAX_BYTES_KEY + ")")
+				.create(IN_MAPPER_COMBINING));
+		options.addOption(OptionBuilder
+				.withDescription("write sorted parts with a sparse left-word index for fast lookups")
+				.create(INDEXED));
 
 		CommandLine cmdline;
 		CommandLineParser parser = new GnuParser();
@@ -187,11 +278,20 @@ public class BigramCountStripes extends Configured implements Tool {
 		String outputPath = cmdline.getOptionValue(OUTPUT);
 		int reduceTasks = cmdline.hasOption(NUM_REDUCERS) ? Integer
 				.parseInt(cmdline.getOptionValue(NUM_REDUCERS)) : 1;
+		boolean packed = cmdline.hasOption(PACKED);
+		long combineSize = cmdline.hasOption(COMBINE) ? Long
+				.parseLong(cmdline.getOptionValue(COMBINE)) << 20 : 0;
+		boolean inMapperCombining = cmdline.hasOption(IN_MAPPER_COMBINING);
+		boolean indexed = cmdline.hasOption(INDEXED);
 
 		LOG.info("Tool: " + BigramCountStripes.class.getSimpleName());
 		LOG.info(" - input path: " + inputPath);
 		LOG.info(" - output path: " + outputPath);
 		LOG.info(" - number of reducers: " + reduceTasks);
+		LOG.info(" - packed input: " + packed);
+		LOG.info(" - combined split size: " + combineSize);
+		LOG.info(" - in-mapper combining: " + inMapperCombining);
+		LOG.info(" - indexed output: " + indexed);
 
 		// Create and configure a MapReduce job
 		Configuration conf = getConf();
@@ -202,21 +302,41 @@ public class BigramCountStripes extends Configured implements Tool {
 		job.setNumReduceTasks(reduceTasks);
 
 		FileInputFormat.setInputPaths(job, new Path(inputPath));
+		if (combineSize > 0) {
+			// Splits of many files, by node and rack of their blocks
+			job.setInputFormatClass(packed ? CombinePackedTextInputFormat.class
+					: CombineTextInputFormat.class);
+			FileInputFormat.setMaxInputSplitSize(job, combineSize);
+		} else if (packed) {
+			job.setInputFormatClass(PackedTextInputFormat.class);
+		}
 		FileOutputFormat.setOutputPath(job, new Path(outputPath));
 
 		job.setMapOutputKeyClass(Text.class);
-		job.setMapOutputValueClass(HashMapStringIntWritable.class);
-		job.setOutputKeyClass(PairOfStrings.class);
+		job.setMapOutputValueClass(OpenHashMapStringIntWritable.class);
+		job.setOutputKeyClass(PairOfTexts.class);
 		job.setOutputValueClass(IntWritable.class);
 
 		/*
 		 * A MapReduce program consists of four components: a mapper, a reducer,
 		 * an optional combiner, and an optional partitioner.
 		 */
-		job.setMapperClass(MyMapper.class);
-		job.setCombinerClass(MyCombiner.class);
+		if (inMapperCombining) {
+			// Stripes leave the mapper merged per left word, skip the combiner
+			job.setMapperClass(MyInMapperCombiningMapper.class);
+		} else {
+			job.setMapperClass(MyMapper.class);
+			job.setCombinerClass(MyCombiner.class);
+		}
 		job.setReducerClass(MyReducer.class);
 
+		if (indexed) {
+			// The index needs left words in the order of PairOfTexts
+			job.setSortComparatorClass(PairOfTexts.TextComparator.class);
+			job.setReducerClass(MySortedReducer.class);
+			job.setOutputFormatClass(IndexedTextOutputFormat.class);
+		}
+
 		// Delete the output directory if it exists already.
 		Path outputDir = new Path(outputPath);
 		FileSystem.get(conf).delete(outputDir, true);
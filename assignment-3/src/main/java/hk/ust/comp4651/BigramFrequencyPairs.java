@@ -23,6 +23,7 @@ import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.CombineTextInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.Tool;
@@ -39,31 +40,37 @@ public class BigramFrequencyPairs extends Configured implements Tool {
 	 * TODO: write your Mapper here
 	 */
 	private static class MyMapper extends
-			Mapper<LongWritable, Text, PairOfStrings, IntWritable> {
+			Mapper<LongWritable, Text, PairOfTexts, IntWritable> {
 
 		// Reuse objects to save overhead of object creation.
 		private static final IntWritable ONE = new IntWritable(1);
-		private static final PairOfStrings BIGRAM = new PairOfStrings();
+		private static final PairOfTexts BIGRAM = new PairOfTexts();
+		private static final Text EMPTY = new Text();
+
+		private final TextTokenizer tokenizer = new TextTokenizer();
+		private Text left = new Text();
+		private Text right = new Text();
 
 		@Override
 		public void map(LongWritable key, Text value, Context context)
 				throws IOException, InterruptedException {
-			String line = ((Text) value).toString();
-			String[] words = line.trim().split("\\s+");
-			
-			/*
-			 * TODO: Your implementation goes here.
-			 */
-			for (int i = 0; i < words.length - 1; i++) {
-				// skip empty words
-				if (words[i].length() == 0)
-					continue;
-				
-				BIGRAM.set(words[i], words[i + 1]);
-				context.write(BIGRAM, ONE);
-				// emit marginal count
-				BIGRAM.set(words[i], "");
-				context.write(BIGRAM, ONE);
+			tokenizer.reset(value);
+
+			// The previous token becomes the left word, swap the buffers
+			boolean hasLeft = false;
+			while (tokenizer.next()) {
+				tokenizer.token(right);
+				if (hasLeft) {
+					BIGRAM.set(left, right);
+					context.write(BIGRAM, ONE);
+					// emit marginal count
+					BIGRAM.set(left, EMPTY);
+					context.write(BIGRAM, ONE);
+				}
+				Text tmp = left;
+				left = right;
+				right = tmp;
+				hasLeft = true;
 			}
 		}
 	}
@@ -72,13 +79,13 @@ public class BigramFrequencyPairs extends Configured implements Tool {
 	 * TODO: Write your reducer here
 	 */
 	private static class MyReducer extends
-			Reducer<PairOfStrings, IntWritable, PairOfStrings, FloatWritable> {
+			Reducer<PairOfTexts, IntWritable, PairOfTexts, FloatWritable> {
 
 		// Reuse objects.
 		private final static FloatWritable VALUE = new FloatWritable();
 		
 		@Override
-		public void reduce(PairOfStrings key, Iterable<IntWritable> values,
+		public void reduce(PairOfTexts key, Iterable<IntWritable> values,
 				Context context) throws IOException, InterruptedException {
 			/*
 			 * TODO: Your implementation goes here.
@@ -89,7 +96,7 @@ public class BigramFrequencyPairs extends Configured implements Tool {
 			while(iter.hasNext())
 				VALUE.set(VALUE.get() + iter.next().get());
 			
-			if (key.getRightElement().toString().equals("")){
+			if (key.getRightElement().getLength() == 0){
 				// set up marginal count for each word
 				MARGINAL.set((int) VALUE.get()); 
 				context.write(key, VALUE);
@@ -101,12 +108,69 @@ public class BigramFrequencyPairs extends Configured implements Tool {
 		}
 	}
 	
+	/*
+	 * Reducer for the secondary sort mode: one call per left word receives
+	 * all its pairs sorted by right word, the marginal ("") first, so the
+	 * marginal is read once and nothing is kept between calls.
+	 */
+	private static class MyGroupedReducer extends
+			Reducer<PairOfTexts, IntWritable, PairOfTexts, FloatWritable> {
+
+		// Reuse objects.
+		private final static FloatWritable VALUE = new FloatWritable();
+		private final PairOfTexts bigram = new PairOfTexts();
+		private final Text right = new Text();
+
+		@Override
+		public void reduce(PairOfTexts key, Iterable<IntWritable> values,
+				Context context) throws IOException, InterruptedException {
+			// The key object is updated to the current pair as values advance
+			Iterator<IntWritable> iter = values.iterator();
+			int marginal = 0;
+			int sum = 0;
+			boolean started = false;
+			while (iter.hasNext()) {
+				int count = iter.next().get();
+				if (started && key.getRightElement().equals(right)) {
+					sum += count;
+					continue;
+				}
+				if (started) {
+					marginal = emit(key.getLeftElement(), sum, marginal, context);
+				}
+				right.set(key.getRightElement());
+				sum = count;
+				started = true;
+			}
+			if (started) {
+				emit(key.getLeftElement(), sum, marginal, context);
+			}
+		}
+
+		/*
+		 * Writes the marginal or the relative frequency of the current right
+		 * word, and returns the marginal for the words that follow.
+		 */
+		private int emit(Text left, int sum, int marginal, Context context)
+				throws IOException, InterruptedException {
+			bigram.set(left, right);
+			if (right.getLength() == 0) {
+				VALUE.set(sum);
+				context.write(bigram, VALUE);
+				return sum;
+			}
+			VALUE.set(sum / (float) marginal);
+			context.write(bigram, VALUE);
+			return marginal;
+		}
+	}
+
 	private static class MyCombiner extends
-			Reducer<PairOfStrings, IntWritable, PairOfStrings, IntWritable> {
+			Reducer<PairOfTexts, IntWritable, PairOfTexts, IntWritable> {
 		private static final IntWritable SUM = new IntWritable();
 
 		@Override
-		public void reduce(PairOfStrings key, Iterable<IntWritable> values,
+		public void reduce(PairOfTexts key, Iterable<IntWritable> values,
 				Context context) throws IOException, InterruptedException {
 			/*
 			 * TODO: Your implementation goes here.
@@ -125,15 +189,140 @@ public class BigramFrequencyPairs extends Configured implements Tool {
 	 * Partition bigrams based on their left elements
 	 */
 	private static class MyPartitioner extends
-			Partitioner<PairOfStrings, IntWritable> {
+			Partitioner<PairOfTexts, IntWritable> {
 		@Override
-		public int getPartition(PairOfStrings key, IntWritable value,
+		public int getPartition(PairOfTexts key, IntWritable value,
 				int numReduceTasks) {
-			return (key.getLeftElement().hashCode() & Integer.MAX_VALUE)
+			return (key.leftHashCode() & Integer.MAX_VALUE)
 					% numReduceTasks;
 		}
 	}
 
+	/*
+	 * Mapper for the vocabulary mode: emits <(leftId << 32 | rightId), 1>,
+	 * where the ids come from the vocabulary in the distributed cache.
+	 */
+	private static class MyEncodedMapper extends
+			Mapper<LongWritable, Text, LongWritable, IntWritable> {
+
+		// Reuse objects to save overhead of object creation.
+		private static final IntWritable ONE = new IntWritable(1);
+		private static final LongWritable BIGRAM = new LongWritable();
+		private static final Text WORD = new Text();
+		private final TextTokenizer tokenizer = new TextTokenizer();
+		private Vocabulary vocabulary;
+
+		@Override
+		public void setup(Context context) throws IOException {
+			vocabulary = Vocabulary.fromCache(context);
+		}
+
+		@Override
+		public void map(LongWritable key, Text value, Context context)
+				throws IOException, InterruptedException {
+			tokenizer.reset(value);
+
+			int left = -1;
+			while (tokenizer.next()) {
+				tokenizer.token(WORD);
+				int right = vocabulary.id(WORD);
+				if (right < 0) {
+					// Unknown word: drop the bigrams it takes part in
+					context.getCounter(Vocabulary.Counter.OUT_OF_VOCABULARY)
+							.increment(1);
+				} else if (left >= 0) {
+					BIGRAM.set((long) left << 32 | right);
+					context.write(BIGRAM, ONE);
+					// emit marginal count, the empty word has id 0
+					BIGRAM.set((long) left << 32);
+					context.write(BIGRAM, ONE);
+				}
+				left = right;
+			}
+		}
+	}
+
+	/*
+	 * Combiner for the vocabulary mode: aggregates counts of packed bigrams
+	 */
+	private static class MyEncodedCombiner extends
+			Reducer<LongWritable, IntWritable, LongWritable, IntWritable> {
+
+		// Reuse objects.
+		private final static IntWritable SUM = new IntWritable();
+
+		@Override
+		public void reduce(LongWritable key, Iterable<IntWritable> values,
+				Context context) throws IOException, InterruptedException {
+			Iterator<IntWritable> iter = values.iterator();
+			int sum = 0;
+			while (iter.hasNext())
+				sum += iter.next().get();
+			SUM.set(sum);
+			context.write(key, SUM);
+		}
+	}
+
+	/*
+	 * Reducer for the vocabulary mode: decodes the packed ids and computes the
+	 * relative frequency. The marginal (right id 0) sorts first.
+	 */
+	private static class MyEncodedReducer extends
+			Reducer<LongWritable, IntWritable, PairOfTexts, FloatWritable> {
+
+		// Reuse objects.
+		private final static FloatWritable VALUE = new FloatWritable();
+		private final static PairOfTexts BIGRAM = new PairOfTexts();
+		private final static Text LEFT = new Text();
+		private final static Text RIGHT = new Text();
+		private Vocabulary vocabulary;
+		private int leftId = -1;
+
+		@Override
+		public void setup(Context context) throws IOException {
+			vocabulary = Vocabulary.fromCache(context);
+		}
+
+		@Override
+		public void reduce(LongWritable key, Iterable<IntWritable> values,
+				Context context) throws IOException, InterruptedException {
+			Iterator<IntWritable> iter = values.iterator();
+			int sum = 0;
+			while (iter.hasNext())
+				sum += iter.next().get();
+
+			int left = (int) (key.get() >>> 32);
+			int right = (int) key.get();
+			if (left != leftId) {
+				leftId = left;
+				vocabulary.word(left, LEFT);
+			}
+			vocabulary.word(right, RIGHT);
+			BIGRAM.set(LEFT, RIGHT);
+
+			if (right == 0) {
+				MARGINAL.set(sum);
+				VALUE.set(sum);
+			} else {
+				VALUE.set(sum / (float) MARGINAL.get());
+			}
+			context.write(BIGRAM, VALUE);
+		}
+	}
+
+	/*
+	 * Partitioner for the vocabulary mode: partitions on the left word id,
+	 * which sends a left word to another part than the default partitioner
+	 */
+	private static class MyEncodedPartitioner extends
+			Partitioner<LongWritable, IntWritable> {
+		@Override
+		public int getPartition(LongWritable key, IntWritable value,
+				int numReduceTasks) {
+			return (int) (key.get() >>> 32) % numReduceTasks;
+		}
+	}
+
 	/**
 	 * Creates an instance of this tool.
 	 */
@@ -143,6 +332,13 @@ public class BigramFrequencyPairs extends Configured implements Tool {
 	private static final String INPUT = "input";
 	private static final String OUTPUT = "output";
 	private static final String NUM_REDUCERS = "numReducers";
+	private static final String PACKED = "packed";
+	private static final String COMBINE = "combine";
+	private static final String VOCABULARY = "vocabulary";
+	private static final String SKEW_AWARE = "skewAware";
+	private static final String SECONDARY_SORT = "secondarySort";
+	private static final String TOTAL_ORDER = "totalOrder";
+	private static final String INDEXED = "indexed";
 
 	/**
 	 * Runs this tool.
@@ -157,6 +353,28 @@ public class BigramFrequencyPairs extends Configured implements Tool {
 				.withDescription("output path").create(OUTPUT));
 		options.addOption(OptionBuilder.withArgName("num").hasArg()
 				.withDescription("number of reducers").create(NUM_REDUCERS));
+		options.addOption(OptionBuilder
+				.withDescription("read text files packed into SequenceFiles by PackLocalFiles")
+				.create(PACKED));
+		options.addOption(OptionBuilder.withArgName("MB").hasArg()
+				.withDescription("group many input files per split, up to this size")
+				.create(COMBINE));
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("vocabulary built by BuildVocabulary, shuffles packed word ids"
+						+ " (parts are sorted, but split the left words by id rather than hash)")
+				.create(VOCABULARY));
+		options.addOption(OptionBuilder
+				.withDescription("balance reducers with a sampled left-word histogram")
+				.create(SKEW_AWARE));
+		options.addOption(OptionBuilder
+				.withDescription("group all pairs of a left word into one reduce() call")
+				.create(SECONDARY_SORT));
+		options.addOption(OptionBuilder
+				.withDescription("range partition on sampled left words, write sorted parts and a manifest")
+				.create(TOTAL_ORDER));
+		options.addOption(OptionBuilder
+				.withDescription("write sorted parts with a sparse left-word index for fast lookups")
+				.create(INDEXED));
 
 		CommandLine cmdline;
 		CommandLineParser parser = new GnuParser();
@@ -183,11 +401,38 @@ public class BigramFrequencyPairs extends Configured implements Tool {
 		String outputPath = cmdline.getOptionValue(OUTPUT);
 		int reduceTasks = cmdline.hasOption(NUM_REDUCERS) ? Integer
 				.parseInt(cmdline.getOptionValue(NUM_REDUCERS)) : 1;
+		boolean packed = cmdline.hasOption(PACKED);
+		long combineSize = cmdline.hasOption(COMBINE) ? Long
+				.parseLong(cmdline.getOptionValue(COMBINE)) << 20 : 0;
+		String vocabularyPath = cmdline.getOptionValue(VOCABULARY);
+		boolean skewAware = cmdline.hasOption(SKEW_AWARE);
+		boolean secondarySort = cmdline.hasOption(SECONDARY_SORT);
+		boolean totalOrder = cmdline.hasOption(TOTAL_ORDER);
+		boolean indexed = cmdline.hasOption(INDEXED);
+		if ((skewAware || secondarySort || totalOrder || indexed)
+				&& vocabularyPath != null) {
+			System.err.println("-" + SKEW_AWARE + ", -" + SECONDARY_SORT
+					+ ", -" + TOTAL_ORDER + " and -" + INDEXED
+					+ " cannot be combined with -" + VOCABULARY);
+			return -1;
+		}
+		if (skewAware && totalOrder) {
+			System.err.println("-" + SKEW_AWARE + " and -" + TOTAL_ORDER
+					+ " are alternative partitioners");
+			return -1;
+		}
 
 		LOG.info("Tool: " + BigramFrequencyPairs.class.getSimpleName());
 		LOG.info(" - input path: " + inputPath);
 		LOG.info(" - output path: " + outputPath);
 		LOG.info(" - number of reducers: " + reduceTasks);
+		LOG.info(" - packed input: " + packed);
+		LOG.info(" - combined split size: " + combineSize);
+		LOG.info(" - vocabulary: " + vocabularyPath);
+		LOG.info(" - skew-aware partitioning: " + skewAware);
+		LOG.info(" - secondary sort: " + secondarySort);
+		LOG.info(" - total order: " + totalOrder);
+		LOG.info(" - indexed output: " + indexed);
 
 		// Create and configure a MapReduce job
 		Configuration conf = getConf();
@@ -198,21 +443,66 @@ public class BigramFrequencyPairs extends Configured implements Tool {
 		job.setNumReduceTasks(reduceTasks);
 
 		FileInputFormat.setInputPaths(job, new Path(inputPath));
+		if (combineSize > 0) {
+			// Splits of many files, by node and rack of their blocks
+			job.setInputFormatClass(packed ? CombinePackedTextInputFormat.class
+					: CombineTextInputFormat.class);
+			FileInputFormat.setMaxInputSplitSize(job, combineSize);
+		} else if (packed) {
+			job.setInputFormatClass(PackedTextInputFormat.class);
+		}
 		FileOutputFormat.setOutputPath(job, new Path(outputPath));
 
-		job.setMapOutputKeyClass(PairOfStrings.class);
 		job.setMapOutputValueClass(IntWritable.class);
-		job.setOutputKeyClass(PairOfStrings.class);
+		job.setOutputKeyClass(PairOfTexts.class);
 		job.setOutputValueClass(FloatWritable.class);
 
 		/*
 		 * A MapReduce program consists of three components: a mapper, a
 		 * reducer, a combiner (which reduces the amount of shuffle data), and a partitioner
 		 */
-		job.setMapperClass(MyMapper.class);
-		job.setCombinerClass(MyCombiner.class);
-		job.setPartitionerClass(MyPartitioner.class);
-		job.setReducerClass(MyReducer.class);
+		if (vocabularyPath != null) {
+			// Shuffle fixed-width packed ids, decoded by the reducer
+			Vocabulary.addToCache(job, new Path(vocabularyPath));
+			job.setMapOutputKeyClass(LongWritable.class);
+			job.setMapperClass(MyEncodedMapper.class);
+			job.setCombinerClass(MyEncodedCombiner.class);
+			job.setPartitionerClass(MyEncodedPartitioner.class);
+			job.setReducerClass(MyEncodedReducer.class);
+		} else {
+			job.setMapOutputKeyClass(PairOfTexts.class);
+			job.setMapperClass(MyMapper.class);
+			job.setCombinerClass(MyCombiner.class);
+			job.setPartitionerClass(MyPartitioner.class);
+			job.setReducerClass(MyReducer.class);
+		}
+		if (secondarySort) {
+			// Order inversion: the natural order puts the marginal first for
+			// each left word, and grouping on the left word streams them all
+			// through one reduce() call
+			job.setSortComparatorClass(PairOfTexts.Comparator.class);
+			job.setGroupingComparatorClass(PairOfTexts.LeftComparator.class);
+			job.setReducerClass(MyGroupedReducer.class);
+		}
+
+		Path partitionFile = new Path(outputPath + "_partitions");
+		if (skewAware) {
+			// Sample the input and plan the partitions before the job starts
+			SkewAwarePartitioner.writePartitionFile(job, partitionFile);
+		}
+
+		if (indexed) {
+			// Pairs reach the reducer sorted, ready to be indexed
+			job.setOutputFormatClass(IndexedTextOutputFormat.class);
+		}
+
+		LeftWordRanges ranges = null;
+		if (totalOrder) {
+			// Sample the input and pick the left-word ranges before the job
+			// starts
+			ranges = LeftWordRanges.sample(job);
+			ranges.configure(job, partitionFile);
+		}
 
 		// Delete the output directory if it exists already.
 		Path outputDir = new Path(outputPath);
@@ -220,10 +510,22 @@ public class BigramFrequencyPairs extends Configured implements Tool {
 
 		// Time the program
 		long startTime = System.currentTimeMillis();
-		job.waitForCompletion(true);
+		boolean success;
+		try {
+			success = job.waitForCompletion(true);
+		} finally {
+			// The partition file is only read by the tasks of this job
+			if (skewAware || totalOrder) {
+				partitionFile.getFileSystem(conf).delete(partitionFile, false);
+			}
+		}
 		LOG.info("Job Finished in " + (System.currentTimeMillis() - startTime)
 				/ 1000.0 + " seconds");
 
+		if (success && ranges != null) {
+			ranges.writeManifest(outputDir.getFileSystem(conf), outputDir);
+		}
+
 		return 0;
 	}
 
@@ -23,6 +23,7 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.CombineTextInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.Tool;
@@ -41,97 +42,182 @@ public class BigramFrequencyStripes extends Configured implements Tool {
 	 * Mapper: emits <word, stripe> where stripe is a hash map
 	 */
 	private static class MyMapper extends
-			Mapper<LongWritable, Text, Text, HashMapStringIntWritable> {
+			Mapper<LongWritable, Text, Text, OpenHashMapStringIntWritable> {
 
 		// Reuse objects to save overhead of object creation.
-		private static final Text KEY = new Text();
-		private static final HashMapStringIntWritable STRIPE = new HashMapStringIntWritable();
+		private static final OpenHashMapStringIntWritable STRIPE = new OpenHashMapStringIntWritable();
+		private static final Text EMPTY = new Text();
+		private Text left = new Text();
+		private Text right = new Text();
+
+		private final TextTokenizer tokenizer = new TextTokenizer();
 
 		@Override
 		public void map(LongWritable key, Text value, Context context)
 				throws IOException, InterruptedException {
-			String line = ((Text) value).toString();
-			String[] words = line.trim().split("\\s+");
+			tokenizer.reset(value);
 
-			/*
-			 * TODO: Your implementation goes here.
-			 */
-			for (int i = 0; i < words.length - 1; i++){
-				// skip empty words
-				if (words[i].length() == 0)
-					continue;
-				
-				STRIPE.clear();
-				
-				STRIPE.increment(words[i+1]);
-				KEY.set(words[i]);
-				context.write(KEY, STRIPE);
-				// emit extra content for marginal count
-				STRIPE.clear();
-				STRIPE.increment("");
-				context.write(KEY, STRIPE);
+			// The previous token becomes the left word, swap the buffers
+			boolean hasLeft = false;
+			while (tokenizer.next()) {
+				tokenizer.token(right);
+				if (hasLeft) {
+					STRIPE.clear();
+					STRIPE.increment(right, 1);
+					context.write(left, STRIPE);
+					// emit extra content for marginal count
+					STRIPE.clear();
+					STRIPE.increment(EMPTY, 1);
+					context.write(left, STRIPE);
+				}
+				Text tmp = left;
+				left = right;
+				right = tmp;
+				hasLeft = true;
 			}
 		}
 	}
 
+	/*
+	 * Mapper for the in-mapper combining mode: aggregates stripes across all
+	 * lines of the split and emits each left word's stripe once.
+	 */
+	private static class MyInMapperCombiningMapper extends
+			Mapper<LongWritable, Text, Text, OpenHashMapStringIntWritable> {
+
+		private final TextTokenizer tokenizer = new TextTokenizer();
+		private StripeAggregator stripes;
+		private static final Text EMPTY = new Text();
+		private Text left = new Text();
+		private Text right = new Text();
+
+		@Override
+		public void setup(Context context) {
+			stripes = new StripeAggregator(context.getConfiguration());
+		}
+
+		@Override
+		public void map(LongWritable key, Text value, Context context)
+				throws IOException, InterruptedException {
+			tokenizer.reset(value);
+
+			// The previous token becomes the left word, swap the buffers
+			boolean hasLeft = false;
+			long bigrams = 0;
+			while (tokenizer.next()) {
+				tokenizer.token(right);
+				if (hasLeft) {
+					stripes.add(left, right, 1);
+					// marginal count
+					stripes.add(left, EMPTY, 1);
+					bigrams++;
+				}
+				Text tmp = left;
+				left = right;
+				right = tmp;
+				hasLeft = true;
+			}
+			context.getCounter(StripeAggregator.Counter.INPUT_BIGRAMS).increment(
+					bigrams);
+
+			if (stripes.isFull()) {
+				stripes.flush(context);
+			}
+		}
+
+		@Override
+		public void cleanup(Context context) throws IOException,
+				InterruptedException {
+			stripes.flush(context);
+		}
+	}
+
 	/*
 	 * TODO: write your reducer to aggregate all stripes associated with each key
 	 */
 	private static class MyReducer extends
-			Reducer<Text, HashMapStringIntWritable, PairOfStrings, FloatWritable> {
+			Reducer<Text, OpenHashMapStringIntWritable, PairOfTexts, FloatWritable> {
 
 		// Reuse objects.
-		private final static HashMapStringIntWritable SUM_STRIPES = new HashMapStringIntWritable();
-		private final static PairOfStrings BIGRAM = new PairOfStrings();
+		private final static OpenHashMapStringIntWritable SUM_STRIPES = new OpenHashMapStringIntWritable();
+		private final static PairOfTexts BIGRAM = new PairOfTexts();
+		private final static Text RIGHT = new Text();
 		private final static FloatWritable FREQ = new FloatWritable();
 
+		private final boolean sortByRightWord;
+
+		private MyReducer() {
+			this(false);
+		}
+
+		protected MyReducer(boolean sortByRightWord) {
+			this.sortByRightWord = sortByRightWord;
+		}
+
 		@Override
 		public void reduce(Text key,
-				Iterable<HashMapStringIntWritable> stripes, Context context)
+				Iterable<OpenHashMapStringIntWritable> stripes, Context context)
 				throws IOException, InterruptedException {
 			/*
 			 * TODO: Your implementation goes here
 			 */
 			
-			Iterator<HashMapStringIntWritable> iter = stripes.iterator();
+			Iterator<OpenHashMapStringIntWritable> iter = stripes.iterator();
 			
 			while(iter.hasNext())
 				SUM_STRIPES.plus(iter.next());
+			if (sortByRightWord)
+				SUM_STRIPES.sortByKey();
+			
+			// The stripe keeps insertion order, so look up the marginal first
+			MARGINAL.set(SUM_STRIPES.get(""));
+			RIGHT.clear();
+			BIGRAM.set(key, RIGHT);
+			FREQ.set(MARGINAL.get());
+			context.write(BIGRAM, FREQ);
 			
-			for (String str : SUM_STRIPES.keySet()){
-				BIGRAM.set(key.toString(), str);
+			for (int i = 0; i < SUM_STRIPES.size(); i++){
+				SUM_STRIPES.keyAt(i, RIGHT);
+				if (RIGHT.getLength() == 0)
+					continue;
 				
-				if (str.equals("")){
-					MARGINAL.set(SUM_STRIPES.get(str));
-					FREQ.set(MARGINAL.get());
-					context.write(BIGRAM, FREQ);
-				} else {					
-					FREQ.set(SUM_STRIPES.get(str) / (float) MARGINAL.get());
-					context.write(BIGRAM, FREQ);
-				}
+				BIGRAM.set(key, RIGHT);
+				FREQ.set(SUM_STRIPES.valueAt(i) / (float) MARGINAL.get());
+				context.write(BIGRAM, FREQ);
 			}
 			
 			SUM_STRIPES.clear();
 		}
 	}
 
+	/*
+	 * Reducer for the total-order and indexed modes: also sorts the pairs of each left word
+	 * by right word, so the output is sorted like that of the pairs job.
+	 */
+	private static class MySortedReducer extends MyReducer {
+
+		private MySortedReducer() {
+			super(true);
+		}
+	}
+
 	/*
 	 * TODO: Write your combiner to aggregate all stripes with the same key
 	 */
 	private static class MyCombiner
 			extends
-			Reducer<Text, HashMapStringIntWritable, Text, HashMapStringIntWritable> {
+			Reducer<Text, OpenHashMapStringIntWritable, Text, OpenHashMapStringIntWritable> {
 		// Reuse objects.
-		private final static HashMapStringIntWritable SUM_STRIPES = new HashMapStringIntWritable();
+		private final static OpenHashMapStringIntWritable SUM_STRIPES = new OpenHashMapStringIntWritable();
 
 		@Override
 		public void reduce(Text key,
-				Iterable<HashMapStringIntWritable> stripes, Context context)
+				Iterable<OpenHashMapStringIntWritable> stripes, Context context)
 				throws IOException, InterruptedException {
 			/*
 			 * TODO: Your implementation goes here
 			 */
-			Iterator<HashMapStringIntWritable> iter = stripes.iterator();
+			Iterator<OpenHashMapStringIntWritable> iter = stripes.iterator();
 			
 			while(iter.hasNext())
 				SUM_STRIPES.plus(iter.next());
@@ -150,6 +236,11 @@ public class BigramFrequencyStripes extends Configured implements Tool {
 	private static final String INPUT = "input";
 	private static final String OUTPUT = "output";
 	private static final String NUM_REDUCERS = "numReducers";
+	private static final String PACKED = "packed";
+	private static final String COMBINE = "combine";
+	private static final String IN_MAPPER_COMBINING = "inMapperCombining";
+	private static final String TOTAL_ORDER = "totalOrder";
+	private static final String INDEXED = "indexed";
 
 	/**
 	 * Runs this tool.
@@ -164,6 +255,23 @@ public class BigramFrequencyStripes extends Configured implements Tool {
 				.withDescription("output path").create(OUTPUT));
 		options.addOption(OptionBuilder.withArgName("num").hasArg()
 				.withDescription("number of reducers").create(NUM_REDUCERS));
+		options.addOption(OptionBuilder
+				.withDescription("read text files packed into SequenceFiles by PackLocalFiles")
+				.create(PACKED));
+		options.addOption(OptionBuilder.withArgName("MB").hasArg()
+				.withDescription("group many input files per split, up to this size")
+				.create(COMBINE));
+		options.addOption(OptionBuilder
+				.withDescription("aggregate stripes across records inside the mapper (thresholds: -D "
+						+ StripeAggregator.MAX_ENTRIES_KEY + ", -D "
+						+ StripeAggregator.MAX_BYTES_KEY + ")")
+				.create(IN_MAPPER_COMBINING));
+		options.addOption(OptionBuilder
+				.withDescription("range partition on sampled left words, write sorted parts and a manifest")
+				.create(TOTAL_ORDER));
+		options.addOption(OptionBuilder
+				.withDescription("write sorted parts with a sparse left-word index for fast lookups")
+				.create(INDEXED));
 
 		CommandLine cmdline;
 		CommandLineParser parser = new GnuParser();
@@ -190,11 +298,22 @@ public class BigramFrequencyStripes extends Configured implements Tool {
 		String outputPath = cmdline.getOptionValue(OUTPUT);
 		int reduceTasks = cmdline.hasOption(NUM_REDUCERS) ? Integer
 				.parseInt(cmdline.getOptionValue(NUM_REDUCERS)) : 1;
+		boolean packed = cmdline.hasOption(PACKED);
+		long combineSize = cmdline.hasOption(COMBINE) ? Long
+				.parseLong(cmdline.getOptionValue(COMBINE)) << 20 : 0;
+		boolean inMapperCombining = cmdline.hasOption(IN_MAPPER_COMBINING);
+		boolean totalOrder = cmdline.hasOption(TOTAL_ORDER);
+		boolean indexed = cmdline.hasOption(INDEXED);
 
 		LOG.info("Tool: " + BigramFrequencyStripes.class.getSimpleName());
 		LOG.info(" - input path: " + inputPath);
 		LOG.info(" - output path: " + outputPath);
 		LOG.info(" - number of reducers: " + reduceTasks);
+		LOG.info(" - packed input: " + packed);
+		LOG.info(" - combined split size: " + combineSize);
+		LOG.info(" - in-mapper combining: " + inMapperCombining);
+		LOG.info(" - total order: " + totalOrder);
+		LOG.info(" - indexed output: " + indexed);
 
 		// Create and configure a MapReduce job
 		Configuration conf = getConf();
@@ -205,31 +324,73 @@ public class BigramFrequencyStripes extends Configured implements Tool {
 		job.setNumReduceTasks(reduceTasks);
 
 		FileInputFormat.setInputPaths(job, new Path(inputPath));
+		if (combineSize > 0) {
+			// Splits of many files, by node and rack of their blocks
+			job.setInputFormatClass(packed ? CombinePackedTextInputFormat.class
+					: CombineTextInputFormat.class);
+			FileInputFormat.setMaxInputSplitSize(job, combineSize);
+		} else if (packed) {
+			job.setInputFormatClass(PackedTextInputFormat.class);
+		}
 		FileOutputFormat.setOutputPath(job, new Path(outputPath));
 
 		job.setMapOutputKeyClass(Text.class);
-		job.setMapOutputValueClass(HashMapStringIntWritable.class);
-		job.setOutputKeyClass(PairOfStrings.class);
+		job.setMapOutputValueClass(OpenHashMapStringIntWritable.class);
+		job.setOutputKeyClass(PairOfTexts.class);
 		job.setOutputValueClass(FloatWritable.class);
 
 		/*
 		 * A MapReduce program consists of four components: a mapper, a reducer,
 		 * an optional combiner, and an optional partitioner.
 		 */
-		job.setMapperClass(MyMapper.class);
-		job.setCombinerClass(MyCombiner.class);
+		if (inMapperCombining) {
+			// Stripes leave the mapper merged per left word, skip the combiner
+			job.setMapperClass(MyInMapperCombiningMapper.class);
+		} else {
+			job.setMapperClass(MyMapper.class);
+			job.setCombinerClass(MyCombiner.class);
+		}
 		job.setReducerClass(MyReducer.class);
 
+		if (indexed) {
+			// The index needs left words in the order of PairOfTexts
+			job.setSortComparatorClass(PairOfTexts.TextComparator.class);
+			job.setReducerClass(MySortedReducer.class);
+			job.setOutputFormatClass(IndexedTextOutputFormat.class);
+		}
+
+		Path partitionFile = new Path(outputPath + "_partitions");
+		LeftWordRanges ranges = null;
+		if (totalOrder) {
+			// Sample the input and pick the left-word ranges before the job
+			// starts
+			ranges = LeftWordRanges.sample(job);
+			ranges.configure(job, partitionFile);
+			job.setReducerClass(MySortedReducer.class);
+		}
+
 		// Delete the output directory if it exists already.
 		Path outputDir = new Path(outputPath);
 		FileSystem.get(conf).delete(outputDir, true);
 
 		// Time the program
 		long startTime = System.currentTimeMillis();
-		job.waitForCompletion(true);
+		boolean success;
+		try {
+			success = job.waitForCompletion(true);
+		} finally {
+			// The partition file is only read by the tasks of this job
+			if (totalOrder) {
+				partitionFile.getFileSystem(conf).delete(partitionFile, false);
+			}
+		}
 		LOG.info("Job Finished in " + (System.currentTimeMillis() - startTime)
 				/ 1000.0 + " seconds");
 
+		if (success && ranges != null) {
+			ranges.writeManifest(outputDir.getFileSystem(conf), outputDir);
+		}
+
 		return 0;
 	}
 
@@ -0,0 +1,141 @@
+package hk.ust.comp4651;
+
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * The sparse index of a part file written by {@link IndexedTextOutputFormat}.
+ * A lookup binary searches the index for the block that can hold a left word,
+ * seeks to it and reads lines only until the word is passed, so its cost
+ * does not depend on the size of the part.
+ */
+public class BigramIndex {
+
+	private final String[] words;
+	private final long[] offsets;
+
+	private BigramIndex(String[] words, long[] offsets) {
+		this.words = words;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * Reads the index of a part file, or returns null if it has none.
+	 */
+	public static BigramIndex open(FileSystem fs, Path part) throws IOException {
+		Path path = new Path(new Path(part.getParent(),
+				IndexedTextOutputFormat.INDEX_DIR), part.getName());
+		DataInputStream in;
+		try {
+			in = fs.open(path);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+
+		try {
+			if (in.readInt() != IndexedTextOutputFormat.MAGIC
+					|| in.readInt() != IndexedTextOutputFormat.VERSION) {
+				throw new IOException("Not a bigram index: " + path);
+			}
+			if (WritableUtils.readVLong(in) != fs.getFileStatus(part).getLen()) {
+				throw new IOException("The index does not match " + part);
+			}
+			int size = WritableUtils.readVInt(in);
+			String[] words = new String[size];
+			long[] offsets = new long[size];
+			byte[] bytes = new byte[64];
+			for (int i = 0; i < size; i++) {
+				int length = WritableUtils.readVInt(in);
+				if (bytes.length < length) {
+					bytes = new byte[length * 2];
+				}
+				in.readFully(bytes, 0, length);
+				words[i] = Text.decode(bytes, 0, length, true);
+				offsets[i] = WritableUtils.readVLong(in);
+			}
+			return new BigramIndex(words, offsets);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the offset of the block that can hold the pairs of a left word,
+	 * or -1 if the word sorts before every word of the part.
+	 */
+	public long blockOffset(String word) {
+		// Blocks start at left words, so the last entry at or before the
+		// word starts the block holding its first pair
+		int pos = Arrays.binarySearch(words, word);
+		if (pos >= 0) {
+			return offsets[pos];
+		}
+		int block = -pos - 2;
+		return block < 0 ? -1 : offsets[block];
+	}
+
+	/**
+	 * Streams the records of a part file whose left word is word to handler.
+	 */
+	public void scan(FileSystem fs, Path part, String word,
+			final TextRecordScanner.Handler handler) throws IOException {
+		long start = blockOffset(word);
+		if (start < 0) {
+			return;
+		}
+
+		final byte[] bytes = word.getBytes("UTF-8");
+		TextRecordScanner.scan(fs, part, start,
+				new TextRecordScanner.Handler() {
+					public boolean record(TextRecordScanner.Record record)
+							throws IOException {
+						int cmp = record.size() == 0 ? -1 : record
+								.compareField(0, bytes);
+						if (cmp > 0) {
+							// Past the word, stop reading
+							return false;
+						}
+						return cmp < 0 || handler.record(record);
+					}
+				});
+	}
+
+	/**
+	 * Streams the records of a left word in an indexed output directory to
+	 * handler. Only the part named by the manifest is read if the output is
+	 * in total order, every part otherwise. Returns false without reading
+	 * anything if the output has no index.
+	 */
+	public static boolean lookup(FileSystem fs, Path dir, String word,
+			TextRecordScanner.Handler handler) throws IOException {
+		List<Path> parts = new ArrayList<Path>();
+		LeftWordRanges ranges = LeftWordRanges.readManifest(fs, dir);
+		if (ranges != null) {
+			parts.add(ranges.partFor(dir, word));
+		} else {
+			parts.addAll(PartFileReader.listParts(dir, fs));
+		}
+
+		List<BigramIndex> indexes = new ArrayList<BigramIndex>();
+		for (Path part : parts) {
+			BigramIndex index = open(fs, part);
+			if (index == null) {
+				return false;
+			}
+			indexes.add(index);
+		}
+		for (int i = 0; i < parts.size(); i++) {
+			indexes.get(i).scan(fs, parts.get(i), word, handler);
+		}
+		return true;
+	}
+}
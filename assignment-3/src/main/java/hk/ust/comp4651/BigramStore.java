@@ -0,0 +1,455 @@
+package hk.ust.comp4651;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+/**
+ * A read-only table of bigram frequencies, memory-mapped from a file built
+ * by {@link BuildBigramStore} out of the output of a frequency job. Nothing
+ * but the mapping lives outside the heap, and opening a store costs a single
+ * mmap, so queries never parse the job output again.
+ *
+ * Pairs are sorted by left word, then right word, in the order of
+ * {@link PairOfStrings}, and grouped by left word. File layout (big endian):
+ *
+ * <pre>
+ * int MAGIC, int VERSION, int number of left words, int number of pairs
+ * int[left words + 1]  offsets of the left words in the byte section
+ * int[left words + 1]  index of the first pair of every left word
+ * int[pairs + 1]       offsets of the right words in the byte section
+ * float[pairs]         frequencies
+ * int[pairs]           pairs of every left word by descending frequency
+ * byte[]               UTF-8 bytes of all words
+ * </pre>
+ *
+ * A point lookup is two binary searches, the pairs of a left word are a
+ * range, and its top k pairs are the first k entries of its range in the
+ * frequency order, ties broken like {@link MapUtil#sortByValue}. The store
+ * is limited to 2 GB, which holds about a hundred million pairs. Queries
+ * may run from several threads at once.
+ */
+public class BigramStore {
+
+	private static final int MAGIC = 0x42475354; // "BGST"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+
+	private final ByteBuffer buffer;
+	private final int numLeft;
+	private final int numPairs;
+	private final int leftOffsetsStart;
+	private final int firstPairStart;
+	private final int rightOffsetsStart;
+	private final int valuesStart;
+	private final int byValueStart;
+	private final int bytesStart;
+	// Buffer reads are absolute, so only the scratch space is per thread
+	private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[64];
+		}
+	};
+
+	private BigramStore(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a bigram store!");
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException("Unsupported bigram store version: "
+					+ buffer.getInt(4));
+		}
+		numLeft = buffer.getInt(8);
+		numPairs = buffer.getInt(12);
+		leftOffsetsStart = HEADER_BYTES;
+		firstPairStart = leftOffsetsStart + 4 * (numLeft + 1);
+		rightOffsetsStart = firstPairStart + 4 * (numLeft + 1);
+		valuesStart = rightOffsetsStart + 4 * (numPairs + 1);
+		byValueStart = valuesStart + 4 * numPairs;
+		bytesStart = byValueStart + 4 * numPairs;
+	}
+
+	/**
+	 * Memory-maps a store from the local file system.
+	 */
+	public static BigramStore open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new BigramStore(buffer);
+		} finally {
+			// The mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns the number of distinct left words
+	 */
+	public int numLeftWords() {
+		return numLeft;
+	}
+
+	/**
+	 * Returns the number of pairs
+	 */
+	public int size() {
+		return numPairs;
+	}
+
+	/**
+	 * Returns the index of a left word, or -1 if no pair starts with it
+	 */
+	public int leftIndex(String left) {
+		byte[] key = encode(left);
+		int lo = 0;
+		int hi = numLeft - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compare(leftOffsetsStart, mid, key);
+			if (cmp < 0) {
+				lo = mid + 1;
+			} else if (cmp > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the pair (left, right), or -1 if there is none
+	 */
+	public int find(String left, String right) {
+		int l = leftIndex(left);
+		if (l < 0) {
+			return -1;
+		}
+		byte[] key = encode(right);
+		int lo = firstPair(l);
+		int hi = endPair(l) - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compare(rightOffsetsStart, mid, key);
+			if (cmp < 0) {
+				lo = mid + 1;
+			} else if (cmp > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the first pair of the left word with index l. The
+	 * pairs of a left word are [firstPair(l), endPair(l)), by right word.
+	 */
+	public int firstPair(int l) {
+		return buffer.getInt(firstPairStart + 4 * l);
+	}
+
+	/**
+	 * Returns the index after the last pair of the left word with index l
+	 */
+	public int endPair(int l) {
+		return buffer.getInt(firstPairStart + 4 * (l + 1));
+	}
+
+	/**
+	 * Returns the pair of the left word with index l at the given rank by
+	 * descending frequency, rank 0 being the most frequent.
+	 */
+	public int topPair(int l, int rank) {
+		return buffer.getInt(byValueStart + 4 * (firstPair(l) + rank));
+	}
+
+	/**
+	 * Returns the left word with index l
+	 */
+	public String left(int l) {
+		return decode(leftOffsetsStart, l);
+	}
+
+	/**
+	 * Returns the right word of a pair
+	 */
+	public String right(int pair) {
+		return decode(rightOffsetsStart, pair);
+	}
+
+	/**
+	 * Returns the frequency of a pair
+	 */
+	public float value(int pair) {
+		return buffer.getFloat(valuesStart + 4 * pair);
+	}
+
+	/*
+	 * Compares the i-th word of an offset table with key
+	 */
+	private int compare(int offsetsStart, int i, byte[] key) {
+		int length = copy(offsetsStart, i);
+		return PairOfStrings.Comparator.compareUtf8(scratch.get(), 0, length,
+				key, 0, key.length);
+	}
+
+	private String decode(int offsetsStart, int i) {
+		int length = copy(offsetsStart, i);
+		try {
+			return Text.decode(scratch.get(), 0, length, true);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private int copy(int offsetsStart, int i) {
+		int start = buffer.getInt(offsetsStart + 4 * i);
+		int length = buffer.getInt(offsetsStart + 4 * (i + 1)) - start;
+		byte[] bytes = scratch.get();
+		if (bytes.length < length) {
+			bytes = new byte[Math.max(bytes.length * 2, length)];
+			scratch.set(bytes);
+		}
+		for (int k = 0; k < length; k++) {
+			bytes[k] = buffer.get(bytesStart + start + k);
+		}
+		return length;
+	}
+
+	private static byte[] encode(String word) {
+		try {
+			ByteBuffer bb = Text.encode(word, false);
+			return Arrays.copyOf(bb.array(), bb.limit());
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to encode " + word);
+		}
+	}
+
+	/**
+	 * Collects the records of a frequency job's output (left, [right,]
+	 * frequency) and writes them as a store. Pairs are kept as primitive
+	 * columns and a byte pool, so building takes far less heap than a map
+	 * of the same pairs. Records may be added from several threads.
+	 */
+	public static class Builder {
+
+		private static final QuickSort SORTER = new QuickSort();
+
+		private final Text field = new Text();
+		private byte[] pool = new byte[1 << 16];
+		private int poolLength;
+		private int[] offsets = new int[1024];
+		private int[] leftLengths = new int[1024];
+		private int[] rightLengths = new int[1024];
+		private float[] values = new float[1024];
+		private int size;
+
+		/**
+		 * Adds a record of a frequency job's output, a marginal having no
+		 * right word.
+		 */
+		public synchronized void add(TextRecordScanner.Record record)
+				throws IOException {
+			if (record.size() != 2 && record.size() != 3) {
+				throw new IOException(
+						"Error parsing the line: expect 2 or 3 terms delimited by tab!");
+			}
+			if (size == values.length) {
+				int n = size * 2;
+				offsets = Arrays.copyOf(offsets, n);
+				leftLengths = Arrays.copyOf(leftLengths, n);
+				rightLengths = Arrays.copyOf(rightLengths, n);
+				values = Arrays.copyOf(values, n);
+			}
+
+			offsets[size] = poolLength;
+			record.text(0, field);
+			leftLengths[size] = append(field);
+			if (record.size() == 3) {
+				record.text(1, field);
+				rightLengths[size] = append(field);
+			} else {
+				rightLengths[size] = 0;
+			}
+			values[size] = record.floatField(record.size() - 1);
+			size++;
+		}
+
+		private int append(Text text) throws IOException {
+			int length = text.getLength();
+			if ((long) poolLength + length > Integer.MAX_VALUE) {
+				throw new IOException("Too many pairs for a bigram store");
+			}
+			if (poolLength + length > pool.length) {
+				pool = Arrays.copyOf(pool, (int) Math.min(Integer.MAX_VALUE,
+						Math.max(pool.length * 2L, poolLength + length)));
+			}
+			System.arraycopy(text.getBytes(), 0, pool, poolLength, length);
+			poolLength += length;
+			return length;
+		}
+
+		/**
+		 * Returns the number of pairs added so far
+		 */
+		public synchronized int size() {
+			return size;
+		}
+
+		/**
+		 * Writes the store.
+		 */
+		public synchronized void write(OutputStream out) throws IOException {
+			// Sort the pairs by left word, then right word
+			final int[] order = new int[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = i;
+			}
+			SORTER.sort(new IndexedSortable() {
+				public int compare(int i, int j) {
+					int a = order[i];
+					int b = order[j];
+					int cmp = compareLeft(a, b);
+					return cmp != 0 ? cmp : compareRight(a, b);
+				}
+
+				public void swap(int i, int j) {
+					int tmp = order[i];
+					order[i] = order[j];
+					order[j] = tmp;
+				}
+			}, 0, size);
+
+			// Left words, the first pair of each and the byte offsets
+			int[] leftOffsets = new int[size + 1];
+			int[] firstPair = new int[size + 1];
+			int[] rightOffsets = new int[size + 1];
+			int numLeft = 0;
+			long bytes = 0;
+			for (int k = 0; k < size; k++) {
+				if (k == 0 || compareLeft(order[k - 1], order[k]) != 0) {
+					leftOffsets[numLeft] = (int) bytes;
+					firstPair[numLeft] = k;
+					numLeft++;
+					bytes += leftLengths[order[k]];
+				}
+			}
+			leftOffsets[numLeft] = (int) bytes;
+			firstPair[numLeft] = size;
+			for (int k = 0; k < size; k++) {
+				rightOffsets[k] = (int) bytes;
+				bytes += rightLengths[order[k]];
+			}
+			rightOffsets[size] = (int) bytes;
+
+			long fileSize = HEADER_BYTES + 8L * (numLeft + 1) + 12L * size
+					+ 4 + bytes;
+			if (fileSize > Integer.MAX_VALUE) {
+				throw new IOException("Too many pairs for a bigram store: "
+						+ size);
+			}
+
+			// The pairs of every left word by descending frequency
+			final int[] byValue = new int[size];
+			for (int k = 0; k < size; k++) {
+				byValue[k] = k;
+			}
+			IndexedSortable frequencyOrder = new IndexedSortable() {
+				public int compare(int i, int j) {
+					int a = order[byValue[i]];
+					int b = order[byValue[j]];
+					int cmp = Float.compare(values[b], values[a]);
+					return cmp != 0 ? cmp : compareRight(b, a);
+				}
+
+				public void swap(int i, int j) {
+					int tmp = byValue[i];
+					byValue[i] = byValue[j];
+					byValue[j] = tmp;
+				}
+			};
+			for (int l = 0; l < numLeft; l++) {
+				SORTER.sort(frequencyOrder, firstPair[l], firstPair[l + 1]);
+			}
+
+			DataOutputStream dos = new DataOutputStream(
+					new BufferedOutputStream(out, 1 << 16));
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(numLeft);
+			dos.writeInt(size);
+			for (int l = 0; l <= numLeft; l++) {
+				dos.writeInt(leftOffsets[l]);
+			}
+			for (int l = 0; l <= numLeft; l++) {
+				dos.writeInt(firstPair[l]);
+			}
+			for (int k = 0; k <= size; k++) {
+				dos.writeInt(rightOffsets[k]);
+			}
+			for (int k = 0; k < size; k++) {
+				dos.writeFloat(values[order[k]]);
+			}
+			for (int k = 0; k < size; k++) {
+				dos.writeInt(byValue[k]);
+			}
+			for (int l = 0; l < numLeft; l++) {
+				int e = order[firstPair[l]];
+				dos.write(pool, offsets[e], leftLengths[e]);
+			}
+			for (int k = 0; k < size; k++) {
+				int e = order[k];
+				dos.write(pool, offsets[e] + leftLengths[e], rightLengths[e]);
+			}
+			dos.flush();
+		}
+
+		/**
+		 * Writes the store to a temporary file and maps it. The file is
+		 * deleted right away, the mapping keeps it until it is collected.
+		 */
+		public BigramStore build() throws IOException {
+			File file = File.createTempFile("bigrams", ".store");
+			try {
+				OutputStream out = new FileOutputStream(file);
+				try {
+					write(out);
+				} finally {
+					out.close();
+				}
+				return open(file);
+			} finally {
+				file.delete();
+			}
+		}
+
+		private int compareLeft(int a, int b) {
+			return PairOfStrings.Comparator.compareUtf8(pool, offsets[a],
+					leftLengths[a], pool, offsets[b], leftLengths[b]);
+		}
+
+		private int compareRight(int a, int b) {
+			return PairOfStrings.Comparator.compareUtf8(pool, offsets[a]
+					+ leftLengths[a], rightLengths[a], pool, offsets[b]
+					+ leftLengths[b], rightLengths[b]);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package hk.ust.comp4651;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+/**
+ * Builds a {@link BigramStore} from the output of
+ * {@link BigramFrequencyPairs} or {@link BigramFrequencyStripes}.
+ * {@link AnalyzeBigramFrequency} queries it with {@code -store} instead of
+ * reading the job output. The store is a local file, as it is memory
+ * mapped by {@link BigramStore#open}.
+ */
+public class BuildBigramStore extends Configured implements Tool {
+	private static final Logger LOG = Logger.getLogger(BuildBigramStore.class);
+
+	/**
+	 * Creates an instance of this tool.
+	 */
+	public BuildBigramStore() {
+	}
+
+	private static final String INPUT = "input";
+	private static final String OUTPUT = "output";
+
+	/**
+	 * Runs this tool.
+	 */
+	@SuppressWarnings({ "static-access" })
+	public int run(String[] args) throws Exception {
+		Options options = new Options();
+
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("bigram frequency output path").create(INPUT));
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("bigram store file, on the local filesystem")
+				.create(OUTPUT));
+
+		CommandLine cmdline;
+		CommandLineParser parser = new GnuParser();
+
+		try {
+			cmdline = parser.parse(options, args);
+		} catch (ParseException exp) {
+			System.err.println("Error parsing command line: "
+					+ exp.getMessage());
+			return -1;
+		}
+
+		// Lack of arguments
+		if (!cmdline.hasOption(INPUT) || !cmdline.hasOption(OUTPUT)) {
+			System.out.println("args: " + Arrays.toString(args));
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.setWidth(120);
+			formatter.printHelp(this.getClass().getName(), options);
+			ToolRunner.printGenericCommandUsage(System.out);
+			return -1;
+		}
+
+		Path inputPath = new Path(cmdline.getOptionValue(INPUT));
+		File outputFile = new File(cmdline.getOptionValue(OUTPUT));
+
+		LOG.info("Tool: " + BuildBigramStore.class.getSimpleName());
+		LOG.info(" - input path: " + inputPath);
+		LOG.info(" - output file: " + outputFile);
+
+		final BigramStore.Builder builder = new BigramStore.Builder();
+		PartFileReader.readDirectory(inputPath,
+				inputPath.getFileSystem(getConf()),
+				new TextRecordScanner.Handler() {
+					public boolean record(TextRecordScanner.Record record)
+							throws IOException {
+						builder.add(record);
+						return true;
+					}
+				});
+
+		OutputStream out = new FileOutputStream(outputFile);
+		try {
+			builder.write(out);
+		} finally {
+			out.close();
+		}
+
+		LOG.info("Wrote " + builder.size() + " bigrams to " + outputFile);
+		return 0;
+	}
+
+	/**
+	 * Dispatches command-line arguments to the tool via the {@code ToolRunner}.
+	 */
+	public static void main(String[] args) throws Exception {
+		ToolRunner.run(new BuildBigramStore(), args);
+	}
+}
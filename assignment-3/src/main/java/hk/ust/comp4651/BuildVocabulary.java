@@ -0,0 +1,108 @@
+package hk.ust.comp4651;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+/**
+ * Builds a {@link Vocabulary} from the output of {@link WordCount}, assigning
+ * dense ids in word order. The bigram pairs jobs take it with
+ * {@code -vocabulary} to shuffle packed word ids instead of strings.
+ */
+public class BuildVocabulary extends Configured implements Tool {
+	private static final Logger LOG = Logger.getLogger(BuildVocabulary.class);
+
+	/**
+	 * Creates an instance of this tool.
+	 */
+	public BuildVocabulary() {
+	}
+
+	private static final String INPUT = "input";
+	private static final String OUTPUT = "output";
+
+	/**
+	 * Runs this tool.
+	 */
+	@SuppressWarnings({ "static-access" })
+	public int run(String[] args) throws Exception {
+		Options options = new Options();
+
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("WordCount output path").create(INPUT));
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("vocabulary file").create(OUTPUT));
+
+		CommandLine cmdline;
+		CommandLineParser parser = new GnuParser();
+
+		try {
+			cmdline = parser.parse(options, args);
+		} catch (ParseException exp) {
+			System.err.println("Error parsing command line: "
+					+ exp.getMessage());
+			return -1;
+		}
+
+		// Lack of arguments
+		if (!cmdline.hasOption(INPUT) || !cmdline.hasOption(OUTPUT)) {
+			System.out.println("args: " + Arrays.toString(args));
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.setWidth(120);
+			formatter.printHelp(this.getClass().getName(), options);
+			ToolRunner.printGenericCommandUsage(System.out);
+			return -1;
+		}
+
+		Path inputPath = new Path(cmdline.getOptionValue(INPUT));
+		Path outputPath = new Path(cmdline.getOptionValue(OUTPUT));
+
+		LOG.info("Tool: " + BuildVocabulary.class.getSimpleName());
+		LOG.info(" - input path: " + inputPath);
+		LOG.info(" - output path: " + outputPath);
+
+		Map<String, IntWritable> counts = AnalyzeWordCount.readDirectory(
+				inputPath, inputPath.getFileSystem(getConf()), Integer.MAX_VALUE);
+
+		// Ids in word order, so that packed pairs sort like the words
+		List<String> words = new ArrayList<String>(counts.keySet());
+		words.remove("");
+		Collections.sort(words);
+
+		FileSystem outFS = outputPath.getFileSystem(getConf());
+		OutputStream out = outFS.create(outputPath, true);
+		try {
+			Vocabulary.write(words, out);
+		} finally {
+			out.close();
+		}
+
+		LOG.info("Wrote " + words.size() + " words to " + outputPath);
+		return 0;
+	}
+
+	/**
+	 * Dispatches command-line arguments to the tool via the {@code ToolRunner}.
+	 */
+	public static void main(String[] args) throws Exception {
+		ToolRunner.run(new BuildVocabulary(), args);
+	}
+}
@@ -0,0 +1,45 @@
+package hk.ust.comp4651;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReaderWrapper;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+
+/**
+ * {@link PackedTextInputFormat} for many packed files: what
+ * {@code CombineTextInputFormat} is to {@code TextInputFormat}. Packed files
+ * are grouped into splits of up to the maximum split size, by node and rack
+ * of their blocks, and each part of a split is read by its own
+ * {@link PackedTextInputFormat} reader, so lines never span two files.
+ */
+public class CombinePackedTextInputFormat extends
+		CombineFileInputFormat<LongWritable, Text> {
+
+	@Override
+	public RecordReader<LongWritable, Text> createRecordReader(
+			InputSplit split, TaskAttemptContext context) throws IOException {
+		return new CombineFileRecordReader<LongWritable, Text>(
+				(CombineFileSplit) split, context, PackedReaderWrapper.class);
+	}
+
+	/*
+	 * Reads one part of a combined split, instantiated by
+	 * CombineFileRecordReader through this constructor
+	 */
+	private static class PackedReaderWrapper extends
+			CombineFileRecordReaderWrapper<LongWritable, Text> {
+
+		public PackedReaderWrapper(CombineFileSplit split,
+				TaskAttemptContext context, Integer idx) throws IOException,
+				InterruptedException {
+			super(new PackedTextInputFormat(), split, context, idx);
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package hk.ust.comp4651;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/**
+ * Writes bigrams as text lines exactly like {@code TextOutputFormat}, plus a
+ * sparse index of each part file in the {@code _index} directory of the
+ * output. All readers of text output keep working, and
+ * {@link BigramIndex} can seek straight to the pairs of a left word.
+ *
+ * The pairs of a part must arrive sorted by left word (the order of
+ * {@link PairOfTexts}). An index entry holds a left word and the offset of
+ * its first line; one is taken at the first left word starting after every
+ * {@value #DEFAULT_INTERVAL} bytes (see {@link #INTERVAL_KEY}), so a lookup
+ * reads one block at most, plus the pairs of its own word.
+ *
+ * Index file layout:
+ *
+ * <pre>
+ * int MAGIC, int VERSION, vlong length of the part, vint number of entries
+ * entries: vint word length, UTF-8 word bytes, vlong offset
+ * </pre>
+ *
+ * Output compression is not supported, as offsets must point into the part.
+ */
+public class IndexedTextOutputFormat<V> extends
+		FileOutputFormat<PairOfTexts, V> {
+
+	/*
+	 * Directory of the index files, next to the part files
+	 */
+	public static final String INDEX_DIR = "_index";
+
+	/*
+	 * Minimum number of bytes between two index entries
+	 */
+	public static final String INTERVAL_KEY = "bigram.index.interval";
+	private static final int DEFAULT_INTERVAL = 64 * 1024;
+
+	static final int MAGIC = 0x42494458; // "BIDX"
+	static final int VERSION = 1;
+
+	private static final byte[] TAB = { '\t' };
+	private static final byte[] NEWLINE = { '\n' };
+
+	@Override
+	public RecordWriter<PairOfTexts, V> getRecordWriter(
+			TaskAttemptContext context) throws IOException,
+			InterruptedException {
+		Configuration conf = context.getConfiguration();
+		Path file = getDefaultWorkFile(context, "");
+		Path index = new Path(new Path(file.getParent(), INDEX_DIR),
+				file.getName());
+		FileSystem fs = file.getFileSystem(conf);
+		return new IndexedRecordWriter<V>(fs.create(file, false), fs.create(
+				index, false), conf.getInt(INTERVAL_KEY, DEFAULT_INTERVAL));
+	}
+
+	private static class IndexedRecordWriter<V> extends
+			RecordWriter<PairOfTexts, V> {
+
+		private final DataOutputStream out;
+		private final DataOutputStream indexOut;
+		private final int interval;
+		private final DataOutputBuffer entries = new DataOutputBuffer();
+		private final Text previous = new Text();
+		private int numEntries;
+		private long offset;
+		private long lastIndexed;
+
+		IndexedRecordWriter(DataOutputStream out, DataOutputStream indexOut,
+				int interval) {
+			this.out = out;
+			this.indexOut = indexOut;
+			this.interval = interval;
+		}
+
+		@Override
+		public void write(PairOfTexts key, V value) throws IOException {
+			Text left = key.getLeftElement();
+			Text right = key.getRightElement();
+			if (numEntries == 0) {
+				addEntry(left);
+			} else {
+				int cmp = PairOfStrings.Comparator.compareUtf8(left.getBytes(),
+						0, left.getLength(), previous.getBytes(), 0,
+						previous.getLength());
+				if (cmp < 0) {
+					throw new IOException("Output is not sorted by left word: "
+							+ left + " after " + previous);
+				}
+				if (cmp > 0 && offset - lastIndexed >= interval) {
+					addEntry(left);
+				}
+			}
+			previous.set(left);
+
+			byte[] v = value.toString().getBytes("UTF-8");
+			out.write(left.getBytes(), 0, left.getLength());
+			out.write(TAB);
+			out.write(right.getBytes(), 0, right.getLength());
+			out.write(TAB);
+			out.write(v);
+			out.write(NEWLINE);
+			offset += left.getLength() + right.getLength() + v.length + 3;
+		}
+
+		private void addEntry(Text left) throws IOException {
+			WritableUtils.writeVInt(entries, left.getLength());
+			entries.write(left.getBytes(), 0, left.getLength());
+			WritableUtils.writeVLong(entries, offset);
+			numEntries++;
+			lastIndexed = offset;
+		}
+
+		@Override
+		public void close(TaskAttemptContext context) throws IOException {
+			out.close();
+			try {
+				indexOut.writeInt(MAGIC);
+				indexOut.writeInt(VERSION);
+				WritableUtils.writeVLong(indexOut, offset);
+				WritableUtils.writeVInt(indexOut, numEntries);
+				indexOut.write(entries.getData(), 0, entries.getLength());
+			} finally {
+				indexOut.close();
+			}
+		}
+	}
+}
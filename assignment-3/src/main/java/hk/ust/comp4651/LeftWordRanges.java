@@ -0,0 +1,214 @@
+package hk.ust.comp4651;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.partition.TotalOrderPartitioner;
+import org.apache.log4j.Logger;
+
+/**
+ * Range partitioning of bigrams on their left word for the total-order mode
+ * of the frequency jobs. Part i of the output holds the left words in
+ * [split(i - 1), split(i)), so the parts read in order are globally sorted,
+ * and all pairs of a left word, marginal included, stay in one part.
+ *
+ * The split words are weighted quantiles of a left-word histogram sampled
+ * with {@link LeftWordSampler}; they are handed to
+ * {@link TotalOrderPartitioner} in its partition file format. Once the job is
+ * done, a manifest in the output directory records the range of every part,
+ * one line per part:
+ *
+ * <pre>
+ * part-r-00000 \t from (inclusive) \t to (exclusive)
+ * </pre>
+ *
+ * where an empty bound is unbounded. Readers use {@link #readManifest} and
+ * {@link #partFor} to open the one part that can hold a word.
+ */
+public class LeftWordRanges {
+	private static final Logger LOG = Logger.getLogger(LeftWordRanges.class);
+
+	/*
+	 * Name of the manifest in the output directory, skipped by the readers of
+	 * part files like the other files starting with '_'
+	 */
+	public static final String MANIFEST = "_manifest";
+
+	private final String[] parts;
+	private final String[] splits;
+
+	private LeftWordRanges(String[] parts, String[] splits) {
+		this.parts = parts;
+		this.splits = splits;
+	}
+
+	/**
+	 * Samples the left words of the job's input and picks the split words
+	 * for the job's number of reducers.
+	 */
+	public static LeftWordRanges sample(Job job) throws IOException,
+			InterruptedException {
+		int numPartitions = job.getNumReduceTasks();
+		OpenHashMapStringIntWritable histogram = LeftWordSampler.sample(job);
+		histogram.sortByKey();
+		long total = 0;
+		for (int i = 0; i < histogram.size(); i++) {
+			total += histogram.valueAt(i);
+		}
+
+		// A word starts the next part once the parts before it hold their
+		// share of the sampled bigrams. A heavy word can overshoot several
+		// shares, the following words then start nearly empty parts.
+		String[] splits = new String[numPartitions - 1];
+		int k = 0;
+		long cumulative = 0;
+		for (int i = 0; i < histogram.size() && k < splits.length; i++) {
+			if (i > 0 && cumulative * numPartitions >= (k + 1) * total) {
+				splits[k++] = histogram.keyAt(i);
+			}
+			cumulative += histogram.valueAt(i);
+		}
+		if (k < splits.length) {
+			throw new IOException("Sampled only " + histogram.size()
+					+ " distinct left words, too few for " + numPartitions
+					+ " reducers");
+		}
+
+		LOG.info("Sampled " + total + " bigrams with " + histogram.size()
+				+ " distinct left words for " + numPartitions + " ranges");
+
+		String[] parts = new String[numPartitions];
+		for (int i = 0; i < numPartitions; i++) {
+			parts[i] = String.format("part-r-%05d", i);
+		}
+		return new LeftWordRanges(parts, splits);
+	}
+
+	/**
+	 * Writes the split words to path as the partition file of a
+	 * {@link TotalOrderPartitioner} and sets the job up to use it. The map
+	 * output key class must be set already: {@link PairOfTexts} splits on
+	 * (word, ""), which sorts before every pair of the word, and {@link Text}
+	 * keys are sorted with {@link PairOfTexts.TextComparator} so that both
+	 * jobs order left words the same way.
+	 */
+	public void configure(Job job, Path path) throws IOException {
+		Configuration conf = job.getConfiguration();
+		Class<?> keyClass = job.getMapOutputKeyClass();
+		if (keyClass != PairOfTexts.class && keyClass != Text.class) {
+			throw new IllegalArgumentException("Cannot range partition keys of "
+					+ keyClass);
+		}
+
+		FileSystem fs = path.getFileSystem(conf);
+		path = fs.makeQualified(path);
+		SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+				SequenceFile.Writer.file(path),
+				SequenceFile.Writer.keyClass(keyClass),
+				SequenceFile.Writer.valueClass(NullWritable.class));
+		try {
+			PairOfTexts pair = new PairOfTexts();
+			Text word = new Text();
+			Text empty = new Text();
+			for (String split : splits) {
+				word.set(split);
+				if (keyClass == PairOfTexts.class) {
+					pair.set(word, empty);
+					writer.append(pair, NullWritable.get());
+				} else {
+					writer.append(word, NullWritable.get());
+				}
+			}
+		} finally {
+			writer.close();
+		}
+
+		if (keyClass == Text.class) {
+			// Binary search with the sort comparator instead of a byte trie
+			job.setSortComparatorClass(PairOfTexts.TextComparator.class);
+			conf.setBoolean(TotalOrderPartitioner.NATURAL_ORDER, false);
+		}
+		TotalOrderPartitioner.setPartitionFile(conf, path);
+		job.setPartitionerClass(TotalOrderPartitioner.class);
+	}
+
+	/**
+	 * Writes the manifest into the output directory of a finished job.
+	 */
+	public void writeManifest(FileSystem fs, Path outputDir) throws IOException {
+		Writer out = new OutputStreamWriter(fs.create(new Path(outputDir,
+				MANIFEST), true), "UTF-8");
+		try {
+			for (int i = 0; i < parts.length; i++) {
+				out.write(parts[i] + "\t" + (i > 0 ? splits[i - 1] : "")
+						+ "\t" + (i < splits.length ? splits[i] : "") + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads the manifest of an output directory, or returns null if the
+	 * output was not written in total order.
+	 */
+	public static LeftWordRanges readManifest(FileSystem fs, Path outputDir)
+			throws IOException {
+		Path path = new Path(outputDir, MANIFEST);
+		if (!fs.exists(path)) {
+			return null;
+		}
+
+		List<String> parts = new ArrayList<String>();
+		List<String> splits = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(
+				fs.open(path), "UTF-8"));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length != 3) {
+					throw new IOException("Malformed manifest line: " + line);
+				}
+				if (!parts.isEmpty()) {
+					splits.add(fields[1]);
+				}
+				parts.add(fields[0]);
+			}
+		} finally {
+			br.close();
+		}
+		return new LeftWordRanges(parts.toArray(new String[parts.size()]),
+				splits.toArray(new String[splits.size()]));
+	}
+
+	/**
+	 * Returns the index of the part holding the pairs of a left word
+	 */
+	public int partition(String word) {
+		// The number of split words at or before word, as in
+		// TotalOrderPartitioner
+		int pos = Arrays.binarySearch(splits, word);
+		return pos >= 0 ? pos + 1 : -pos - 1;
+	}
+
+	/**
+	 * Returns the part file of outputDir holding the pairs of a left word
+	 */
+	public Path partFor(Path outputDir, String word) {
+		return new Path(outputDir, parts[partition(word)]);
+	}
+}
@@ -0,0 +1,90 @@
+package hk.ust.comp4651;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Builds a histogram of the left words of the bigrams in a job's input
+ * before the job starts, for the partitioners that plan their partitions up
+ * front ({@link SkewAwarePartitioner}, {@link LeftWordRanges}).
+ *
+ * InputSampler cannot be used for this: it samples the keys of the input
+ * format, which are byte offsets here, and not the words the jobs shuffle.
+ */
+public class LeftWordSampler {
+
+	/*
+	 * Sampling parameters
+	 */
+	public static final String SAMPLE_SPLITS_KEY = "bigram.sample.splits";
+	public static final String SAMPLE_RECORDS_KEY = "bigram.sample.records";
+	private static final int DEFAULT_SAMPLE_SPLITS = 10;
+	private static final int DEFAULT_SAMPLE_RECORDS = 100000;
+
+	private LeftWordSampler() {
+	}
+
+	/**
+	 * Counts the left words of bigrams in the first records of a few splits
+	 * spread evenly over the input, as InputSampler.SplitSampler does.
+	 */
+	@SuppressWarnings("unchecked")
+	public static OpenHashMapStringIntWritable sample(Job job)
+			throws IOException, InterruptedException {
+		Configuration conf = job.getConfiguration();
+		int numSplits = conf.getInt(SAMPLE_SPLITS_KEY, DEFAULT_SAMPLE_SPLITS);
+		int numRecords = conf.getInt(SAMPLE_RECORDS_KEY, DEFAULT_SAMPLE_RECORDS);
+
+		InputFormat<?, Text> inputFormat;
+		try {
+			inputFormat = (InputFormat<?, Text>) ReflectionUtils.newInstance(
+					job.getInputFormatClass(), conf);
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+		List<InputSplit> splits = inputFormat.getSplits(job);
+		int step = Math.max(1, splits.size() / numSplits);
+
+		OpenHashMapStringIntWritable histogram = new OpenHashMapStringIntWritable();
+		TextTokenizer tokenizer = new TextTokenizer();
+		Text left = new Text();
+		Text right = new Text();
+		for (int i = 0; i < splits.size(); i += step) {
+			TaskAttemptContext context = new TaskAttemptContextImpl(conf,
+					new TaskAttemptID());
+			RecordReader<?, Text> reader = inputFormat.createRecordReader(
+					splits.get(i), context);
+			try {
+				reader.initialize(splits.get(i), context);
+				for (int r = 0; r < numRecords && reader.nextKeyValue(); r++) {
+					tokenizer.reset(reader.getCurrentValue());
+					boolean hasLeft = false;
+					while (tokenizer.next()) {
+						tokenizer.token(right);
+						if (hasLeft) {
+							histogram.increment(left, 1);
+						}
+						Text tmp = left;
+						left = right;
+						right = tmp;
+						hasLeft = true;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return histogram;
+	}
+}
@@ -13,14 +13,7 @@ public class MapUtil {
 			Map<K, V> map) {
 		List<Map.Entry<K, V>> list = new LinkedList<Map.Entry<K, V>>(
 				map.entrySet());
-		Collections.sort(list, new Comparator<Map.Entry<K, V>>() {
-			public int compare(Map.Entry<K, V> o1, Map.Entry<K, V> o2) {
-				if (o2.getValue().compareTo(o1.getValue()) == 0) {
-					return o2.getKey().compareTo(o1.getKey());
-				}
-				return o2.getValue().compareTo(o1.getValue());
-			}
-		});
+		Collections.sort(list, MapUtil.<K, V> byValueDescending());
 
 		Map<K, V> result = new LinkedHashMap<K, V>();
 		for (Map.Entry<K, V> entry : list) {
@@ -29,4 +22,19 @@ public class MapUtil {
 
 		return result;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * The order of {@link #sortByValue(Map)}: descending value, ties broken
+	 * by descending key
+	 */
+	public static <K extends Comparable<? super K>, V extends Comparable<? super V>> Comparator<Map.Entry<K, V>> byValueDescending() {
+		return new Comparator<Map.Entry<K, V>>() {
+			public int compare(Map.Entry<K, V> o1, Map.Entry<K, V> o2) {
+				if (o2.getValue().compareTo(o1.getValue()) == 0) {
+					return o2.getKey().compareTo(o1.getKey());
+				}
+				return o2.getValue().compareTo(o1.getValue());
+			}
+		};
+	}
+}
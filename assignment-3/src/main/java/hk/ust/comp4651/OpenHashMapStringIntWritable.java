@@ -0,0 +1,511 @@
+package hk.ust.comp4651;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+/**
+ * A stripe of (string, int) entries backed by primitive arrays instead of a
+ * boxed {@code HashMap}. It offers the same increment/plus/readFields/write
+ * contract as {@link HashMapStringIntWritable}.
+ *
+ * Keys are kept as UTF-8 bytes in a single byte pool, entries are stored
+ * densely in insertion order, and an open-addressing table with linear
+ * probing maps a key to its entry, so an increment costs one probe sequence
+ * and no boxing. {@link #clear()} keeps all arrays for reuse.
+ *
+ * The serialized form is versioned and compact: entries sorted by key, keys
+ * front-coded against their predecessor, and counts as variable-length ints.
+ */
+public class OpenHashMapStringIntWritable implements Writable {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	/*
+	 * Approximate bytes of the object itself, its sorters and the headers of
+	 * its arrays, see heapBytes()
+	 */
+	private static final int OBJECT_OVERHEAD = 256;
+
+	/*
+	 * Serialization format tag, written first so the format can evolve
+	 */
+	private static final byte FORMAT_FRONT_CODED = 1;
+
+	private static final QuickSort SORTER = new QuickSort();
+
+	/*
+	 * Open-addressing table: slot -> entry index + 1, 0 marks an empty slot
+	 */
+	private int[] table;
+	private int mask;
+
+	/*
+	 * Dense entry columns
+	 */
+	private int[] hashes;
+	private int[] offsets;
+	private int[] lengths;
+	private int[] values;
+	private int size;
+
+	/*
+	 * Pool holding the UTF-8 bytes of all keys
+	 */
+	private byte[] pool;
+	private int poolLength;
+
+	/*
+	 * Reusable buffers for serialization and sorting: entry order, decoded
+	 * key and a permuted column
+	 */
+	private int[] order = new int[0];
+	private int[] permuted = new int[0];
+	private byte[] scratch = new byte[64];
+	private final IndexedSortable sortable = new IndexedSortable() {
+		public int compare(int i, int j) {
+			int a = order[i];
+			int b = order[j];
+			return WritableComparator.compareBytes(pool, offsets[a],
+					lengths[a], pool, offsets[b], lengths[b]);
+		}
+
+		public void swap(int i, int j) {
+			int tmp = order[i];
+			order[i] = order[j];
+			order[j] = tmp;
+		}
+	};
+	private final IndexedSortable stringOrder = new IndexedSortable() {
+		public int compare(int i, int j) {
+			int a = order[i];
+			int b = order[j];
+			return PairOfStrings.Comparator.compareUtf8(pool, offsets[a],
+					lengths[a], pool, offsets[b], lengths[b]);
+		}
+
+		public void swap(int i, int j) {
+			sortable.swap(i, j);
+		}
+	};
+
+	/*
+	 * Creates an empty stripe
+	 */
+	public OpenHashMapStringIntWritable() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/*
+	 * Creates an empty stripe sized for the expected number of entries
+	 */
+	public OpenHashMapStringIntWritable(int expectedSize) {
+		int cap = Integer.highestOneBit(Math.max(expectedSize, 2) * 2 - 1) << 1;
+		table = new int[cap];
+		mask = cap - 1;
+		hashes = new int[cap / 2];
+		offsets = new int[cap / 2];
+		lengths = new int[cap / 2];
+		values = new int[cap / 2];
+		pool = new byte[cap * 8];
+	}
+
+	/**
+	 * Returns the number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns the number of bytes used by the keys, which is a rough measure
+	 * of the stripe's footprint.
+	 */
+	public int keyBytes() {
+		return poolLength;
+	}
+
+	/**
+	 * Returns an estimate of the heap held by this stripe: all of its arrays
+	 * at their current capacity, which only grows, whatever the number of
+	 * entries.
+	 */
+	public long heapBytes() {
+		return OBJECT_OVERHEAD
+				+ 4L
+				* (table.length + hashes.length + offsets.length
+						+ lengths.length + values.length + order.length + permuted.length)
+				+ pool.length + scratch.length;
+	}
+
+	/**
+	 * Removes all entries, keeping the allocated arrays for reuse.
+	 */
+	public void clear() {
+		if (size == 0) {
+			return;
+		}
+		Arrays.fill(table, 0);
+		size = 0;
+		poolLength = 0;
+	}
+
+	/**
+	 * Increments the value of the key by one
+	 *
+	 * @param key
+	 */
+	public void increment(String key) {
+		increment(key, 1);
+	}
+
+	/**
+	 * Increments the value of the key by inc
+	 *
+	 * @param key
+	 * @param inc
+	 *            is the increments by which the value should be incremented
+	 */
+	public void increment(String key, int inc) {
+		ByteBuffer bb = encode(key);
+		increment(bb.array(), bb.arrayOffset(), bb.limit(), inc);
+	}
+
+	/**
+	 * Increments the value of the key held in a {@link Text} by inc
+	 */
+	public void increment(Text key, int inc) {
+		increment(key.getBytes(), 0, key.getLength(), inc);
+	}
+
+	/**
+	 * Increments the value of the UTF-8 key in bytes[start, start + length)
+	 * by inc
+	 * 
+	 * @return the index of the key's entry, see {@link #keyAt(int)}
+	 */
+	public int increment(byte[] bytes, int start, int length, int inc) {
+		int hash = hash(bytes, start, length);
+		int slot = hash & mask;
+		while (true) {
+			int e = table[slot] - 1;
+			if (e < 0) {
+				break;
+			}
+			if (hashes[e] == hash && lengths[e] == length
+					&& equalBytes(pool, offsets[e], bytes, start, length)) {
+				values[e] += inc;
+				return e;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		// Not found, append a new entry and claim the empty slot
+		ensureEntryCapacity();
+		ensurePoolCapacity(length);
+		System.arraycopy(bytes, start, pool, poolLength, length);
+		hashes[size] = hash;
+		offsets[size] = poolLength;
+		lengths[size] = length;
+		values[size] = inc;
+		poolLength += length;
+		size++;
+		table[slot] = size;
+
+		if (size * 2 > table.length) {
+			rehash(table.length * 2);
+		}
+		return size - 1;
+	}
+
+	/**
+	 * Returns the value of the key, or 0 if the key is absent
+	 */
+	public int get(String key) {
+		ByteBuffer bb = encode(key);
+		int e = find(bb.array(), bb.arrayOffset(), bb.limit());
+		return e < 0 ? 0 : values[e];
+	}
+
+	public boolean containsKey(String key) {
+		ByteBuffer bb = encode(key);
+		return find(bb.array(), bb.arrayOffset(), bb.limit()) >= 0;
+	}
+
+	/**
+	 * Returns the index of the entry of the UTF-8 key in
+	 * bytes[start, start + length), or -1 if the key is absent
+	 */
+	public int indexOf(byte[] bytes, int start, int length) {
+		return find(bytes, start, length);
+	}
+
+	/**
+	 * Adds up two OpenHashMapStringIntWritable
+	 *
+	 * @param that
+	 */
+	public void plus(OpenHashMapStringIntWritable that) {
+		for (int i = 0; i < that.size; i++) {
+			increment(that.pool, that.offsets[i], that.lengths[i],
+					that.values[i]);
+		}
+	}
+
+	/**
+	 * Returns the key of the i-th entry, in insertion order. Malformed UTF-8
+	 * is replaced the same way as {@link Text#toString()} does.
+	 */
+	public String keyAt(int i) {
+		try {
+			return Text.decode(pool, offsets[i], lengths[i], true);
+		} catch (IOException e) {
+			throw new IllegalStateException("Malformed key in stripe", e);
+		}
+	}
+
+	/**
+	 * Copies the key of the i-th entry into text without creating a String
+	 */
+	public void keyAt(int i, Text text) {
+		text.set(pool, offsets[i], lengths[i]);
+	}
+
+	/**
+	 * Returns the value of the i-th entry, in insertion order
+	 */
+	public int valueAt(int i) {
+		return values[i];
+	}
+
+	/*
+	 * Deserializes OpenHashMapStringIntWritable
+	 */
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		this.clear();
+		plus(in);
+	}
+
+	/**
+	 * Decodes a serialized stripe and adds it to this one. Keys are rebuilt
+	 * in a scratch buffer, so no intermediate stripe or String is created.
+	 */
+	public void plus(DataInput in) throws IOException {
+		int format = in.readByte();
+		if (format != FORMAT_FRONT_CODED) {
+			throw new IOException("Unknown stripe format: " + format);
+		}
+
+		int numEntries = WritableUtils.readVInt(in);
+		int keyLength = 0;
+		for (int i = 0; i < numEntries; i++) {
+			int shared = WritableUtils.readVInt(in);
+			int suffix = WritableUtils.readVInt(in);
+			if (shared > keyLength || suffix < 0) {
+				throw new IOException("Corrupt stripe: bad key prefix");
+			}
+			keyLength = shared + suffix;
+			if (scratch.length < keyLength) {
+				scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2,
+						keyLength));
+			}
+			in.readFully(scratch, shared, suffix);
+			increment(scratch, 0, keyLength, WritableUtils.readVInt(in));
+		}
+	}
+
+	/*
+	 * Serializes OpenHashMapStringIntWritable. Entries are written in key
+	 * byte order; each key is stored as the length of the prefix it shares
+	 * with the previous key plus the remaining bytes, and lengths and counts
+	 * are variable-length ints.
+	 */
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(FORMAT_FRONT_CODED);
+		WritableUtils.writeVInt(out, size);
+		if (size == 0) {
+			return;
+		}
+
+		sortEntries();
+		int prev = -1;
+		for (int k = 0; k < size; k++) {
+			int e = order[k];
+			int shared = prev < 0 ? 0 : sharedPrefix(prev, e);
+			WritableUtils.writeVInt(out, shared);
+			WritableUtils.writeVInt(out, lengths[e] - shared);
+			out.write(pool, offsets[e] + shared, lengths[e] - shared);
+			WritableUtils.writeVInt(out, values[e]);
+			prev = e;
+		}
+	}
+
+	/**
+	 * Reorders the entries by key, in the order of
+	 * {@link String#compareTo(String)}, so that {@link #keyAt(int)} and
+	 * {@link #valueAt(int)} walk the keys in sorted order.
+	 */
+	public void sortByKey() {
+		if (size < 2) {
+			return;
+		}
+		if (order.length < size) {
+			order = new int[values.length];
+		}
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		SORTER.sort(stringOrder, 0, size);
+
+		permute(hashes);
+		permute(offsets);
+		permute(lengths);
+		permute(values);
+		rehash(table.length);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(keyAt(i)).append('=').append(values[i]);
+		}
+		return sb.append('}').toString();
+	}
+
+	/*
+	 * Fills order with the entry indices sorted by key bytes
+	 */
+	private void sortEntries() {
+		if (order.length < size) {
+			order = new int[values.length];
+		}
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		SORTER.sort(sortable, 0, size);
+	}
+
+	/*
+	 * Rearranges a column in the order of the order array
+	 */
+	private void permute(int[] column) {
+		if (permuted.length < size) {
+			permuted = new int[values.length];
+		}
+		for (int k = 0; k < size; k++) {
+			permuted[k] = column[order[k]];
+		}
+		System.arraycopy(permuted, 0, column, 0, size);
+	}
+
+	private int sharedPrefix(int a, int b) {
+		int n = Math.min(lengths[a], lengths[b]);
+		int i = 0;
+		while (i < n && pool[offsets[a] + i] == pool[offsets[b] + i]) {
+			i++;
+		}
+		return i;
+	}
+
+	private int find(byte[] bytes, int start, int length) {
+		int hash = hash(bytes, start, length);
+		int slot = hash & mask;
+		while (true) {
+			int e = table[slot] - 1;
+			if (e < 0) {
+				return -1;
+			}
+			if (hashes[e] == hash && lengths[e] == length
+					&& equalBytes(pool, offsets[e], bytes, start, length)) {
+				return e;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private void rehash(int capacity) {
+		if (capacity == table.length) {
+			Arrays.fill(table, 0);
+		} else {
+			table = new int[capacity];
+		}
+		mask = capacity - 1;
+		for (int e = 0; e < size; e++) {
+			int slot = hashes[e] & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = e + 1;
+		}
+	}
+
+	private void ensureEntryCapacity() {
+		if (size < values.length) {
+			return;
+		}
+		int n = values.length * 2;
+		hashes = Arrays.copyOf(hashes, n);
+		offsets = Arrays.copyOf(offsets, n);
+		lengths = Arrays.copyOf(lengths, n);
+		values = Arrays.copyOf(values, n);
+	}
+
+	private void ensurePoolCapacity(int extra) {
+		if (poolLength + extra <= pool.length) {
+			return;
+		}
+		pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolLength
+				+ extra));
+	}
+
+	private static ByteBuffer encode(String key) {
+		try {
+			return Text.encode(key, false);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to encode key: " + key);
+		}
+	}
+
+	private static boolean equalBytes(byte[] a, int aStart, byte[] b,
+			int bStart, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a[aStart + i] != b[bStart + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Spreads the bits of the byte hash so that linear probing over a
+	 * power-of-two table does not cluster.
+	 */
+	static int hash(byte[] bytes, int start, int length) {
+		int h = WritableComparator.hashBytes(bytes, start, length);
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
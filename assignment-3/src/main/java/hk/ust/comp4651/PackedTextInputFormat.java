@@ -0,0 +1,97 @@
+package hk.ust.comp4651;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileRecordReader;
+import org.apache.hadoop.util.LineReader;
+
+/**
+ * Reads the lines of text files packed into SequenceFiles of file name to
+ * file contents (see {@code PackLocalFiles} in assignment 2), as
+ * {@code TextInputFormat} reads the lines of the files themselves: the key
+ * is the offset of a line in its file, the value the line without its end
+ * of line. Mappers written for text input run unchanged on packed input.
+ *
+ * A corpus of many small files packed into block-sized SequenceFiles takes
+ * one map task per block instead of one per file. SequenceFiles are split
+ * between records, so the lines of a file are always read by one task.
+ */
+public class PackedTextInputFormat extends
+		SequenceFileInputFormat<LongWritable, Text> {
+
+	@Override
+	public RecordReader<LongWritable, Text> createRecordReader(
+			InputSplit split, TaskAttemptContext context) throws IOException {
+		return new PackedLineReader();
+	}
+
+	private static class PackedLineReader extends
+			RecordReader<LongWritable, Text> {
+
+		private final SequenceFileRecordReader<Text, BytesWritable> files = new SequenceFileRecordReader<Text, BytesWritable>();
+		private final LongWritable key = new LongWritable();
+		private final Text value = new Text();
+		private LineReader lines;
+		private long offset;
+
+		@Override
+		public void initialize(InputSplit split, TaskAttemptContext context)
+				throws IOException, InterruptedException {
+			files.initialize(split, context);
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException, InterruptedException {
+			while (true) {
+				if (lines != null) {
+					int n = lines.readLine(value);
+					if (n > 0) {
+						key.set(offset);
+						offset += n;
+						return true;
+					}
+					lines.close();
+					lines = null;
+				}
+				if (!files.nextKeyValue()) {
+					return false;
+				}
+				BytesWritable contents = files.getCurrentValue();
+				lines = new LineReader(new ByteArrayInputStream(
+						contents.getBytes(), 0, contents.getLength()));
+				offset = 0;
+			}
+		}
+
+		@Override
+		public LongWritable getCurrentKey() {
+			return key;
+		}
+
+		@Override
+		public Text getCurrentValue() {
+			return value;
+		}
+
+		@Override
+		public float getProgress() throws IOException {
+			return files.getProgress();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (lines != null) {
+				lines.close();
+			}
+			files.close();
+		}
+	}
+}
@@ -7,6 +7,8 @@ import java.util.Objects;
 
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
 
 public class PairOfStrings implements WritableComparable<PairOfStrings> {
 
@@ -122,4 +124,118 @@ public class PairOfStrings implements WritableComparable<PairOfStrings> {
 	public PairOfStrings clone() {
 		return new PairOfStrings(leftElement, rightElement);
 	}
+
+	/**
+	 * Compares two serialized pairs without deserializing them. The ordering
+	 * is identical to {@link PairOfStrings#compareTo(PairOfStrings)}, so the
+	 * empty right element (the marginal) still sorts first.
+	 */
+	public static class Comparator extends WritableComparator {
+
+		public Comparator() {
+			super(PairOfStrings.class);
+		}
+
+		/*
+		 * For other pair types with the same serialized form
+		 */
+		protected Comparator(Class<? extends WritableComparable<?>> keyClass) {
+			super(keyClass);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			try {
+				int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+				int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+				int len1 = readVInt(b1, s1);
+				int len2 = readVInt(b2, s2);
+
+				int cmp = compareUtf8(b1, s1 + n1, len1, b2, s2 + n2, len2);
+				if (cmp != 0) {
+					return cmp;
+				}
+
+				// Left elements are equal, move on to the right elements
+				s1 += n1 + len1;
+				s2 += n2 + len2;
+				n1 = WritableUtils.decodeVIntSize(b1[s1]);
+				n2 = WritableUtils.decodeVIntSize(b2[s2]);
+				len1 = readVInt(b1, s1);
+				len2 = readVInt(b2, s2);
+
+				return compareUtf8(b1, s1 + n1, len1, b2, s2 + n2, len2);
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		/**
+		 * Compares two UTF-8 encoded strings in the same order as
+		 * {@link String#compareTo(String)}, i.e., by UTF-16 code units.
+		 * 
+		 * UTF-8 byte order equals code point order, which only disagrees with
+		 * UTF-16 order when a supplementary character is compared against a
+		 * character in U+E000..U+FFFF, so the first differing character is
+		 * decoded and compared as UTF-16.
+		 */
+		public static int compareUtf8(byte[] b1, int s1, int l1, byte[] b2,
+				int s2, int l2) {
+			int n = Math.min(l1, l2);
+			int i = 0;
+			while (i < n && b1[s1 + i] == b2[s2 + i]) {
+				i++;
+			}
+			if (i == n) {
+				return l1 - l2;
+			}
+
+			// Back up to the first byte of the character that differs
+			while (i > 0 && (b1[s1 + i] & 0xC0) == 0x80) {
+				i--;
+			}
+
+			int c1 = decodeCodePoint(b1, s1 + i, s1 + l1);
+			int c2 = decodeCodePoint(b2, s2 + i, s2 + l2);
+			if (c1 >= Character.MIN_SUPPLEMENTARY_CODE_POINT
+					&& c2 >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+				return c1 - c2;
+			}
+
+			return firstUtf16Unit(c1) - firstUtf16Unit(c2);
+		}
+
+		private static int decodeCodePoint(byte[] b, int pos, int end) {
+			int lead = b[pos] & 0xFF;
+			int len;
+			int cp;
+			if (lead < 0x80) {
+				return lead;
+			} else if (lead < 0xE0) {
+				len = 2;
+				cp = lead & 0x1F;
+			} else if (lead < 0xF0) {
+				len = 3;
+				cp = lead & 0x0F;
+			} else {
+				len = 4;
+				cp = lead & 0x07;
+			}
+			for (int k = 1; k < len; k++) {
+				int next = pos + k < end ? b[pos + k] & 0x3F : 0;
+				cp = (cp << 6) | next;
+			}
+			return cp;
+		}
+
+		private static int firstUtf16Unit(int cp) {
+			return cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT ? Character
+					.highSurrogate(cp) : cp;
+		}
+	}
+
+	static {
+		// Register this comparator so that the shuffle sort uses it
+		WritableComparator.define(PairOfStrings.class, new Comparator());
+	}
 }
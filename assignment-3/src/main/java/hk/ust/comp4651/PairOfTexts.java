@@ -0,0 +1,226 @@
+package hk.ust.comp4651;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A pair of strings held as two reusable {@link Text} buffers, so a bigram
+ * can go from the tokenizer to the output without ever becoming a String.
+ * It serializes and sorts exactly like {@link PairOfStrings}.
+ */
+public class PairOfTexts implements WritableComparable<PairOfTexts> {
+
+	private final Text leftElement = new Text();
+	private final Text rightElement = new Text();
+
+	/**
+	 * Returns the left element
+	 * 
+	 * @return the left element
+	 */
+	public Text getLeftElement() {
+		return leftElement;
+	}
+
+	/**
+	 * Returns the right element
+	 * 
+	 * @return the right element
+	 */
+	public Text getRightElement() {
+		return rightElement;
+	}
+
+	/**
+	 * Creates a pair.
+	 */
+	public PairOfTexts() {
+	}
+
+	/**
+	 * Creates a pair.
+	 * 
+	 * @param left
+	 *            the left element
+	 * @param right
+	 *            the right element
+	 */
+	public PairOfTexts(String left, String right) {
+		leftElement.set(left);
+		rightElement.set(right);
+	}
+
+	/**
+	 * Sets the left and right elements of this pair by copying their bytes.
+	 * 
+	 * @param left
+	 * @param right
+	 */
+	public void set(Text left, Text right) {
+		leftElement.set(left.getBytes(), 0, left.getLength());
+		rightElement.set(right.getBytes(), 0, right.getLength());
+	}
+
+	/**
+	 * Sets the left and right elements from UTF-8 byte ranges.
+	 */
+	public void set(byte[] left, int leftStart, int leftLength, byte[] right,
+			int rightStart, int rightLength) {
+		leftElement.set(left, leftStart, leftLength);
+		rightElement.set(right, rightStart, rightLength);
+	}
+
+	/**
+	 * Returns a hash of the left element's bytes, for partitioning all pairs
+	 * with the same left element together.
+	 */
+	public int leftHashCode() {
+		return OpenHashMapStringIntWritable.hash(leftElement.getBytes(), 0,
+				leftElement.getLength());
+	}
+
+	/*
+	 * Deserializes the pair.
+	 */
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		leftElement.readFields(in);
+		rightElement.readFields(in);
+	}
+
+	/*
+	 * Serializes the pair, in the same form as PairOfStrings.
+	 */
+	@Override
+	public void write(DataOutput out) throws IOException {
+		leftElement.write(out);
+		rightElement.write(out);
+	}
+
+	/**
+	 * Defines a natural sort order for pairs. Pairs are sorted first by the
+	 * left element, and then by the right element, in the same order as
+	 * {@link PairOfStrings}.
+	 */
+	@Override
+	public int compareTo(PairOfTexts pair) {
+		int cmp = PairOfStrings.Comparator.compareUtf8(leftElement.getBytes(),
+				0, leftElement.getLength(), pair.leftElement.getBytes(), 0,
+				pair.leftElement.getLength());
+		if (cmp != 0) {
+			return cmp;
+		}
+		return PairOfStrings.Comparator.compareUtf8(rightElement.getBytes(), 0,
+				rightElement.getLength(), pair.rightElement.getBytes(), 0,
+				pair.rightElement.getLength());
+	}
+
+	@Override
+	public int hashCode() {
+		return leftHashCode() * 31 + rightElement.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj instanceof PairOfTexts) {
+			PairOfTexts pair = (PairOfTexts) obj;
+			return leftElement.equals(pair.leftElement)
+					&& rightElement.equals(pair.rightElement);
+		}
+
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return leftElement + "\t" + rightElement;
+	}
+
+	/**
+	 * Compares two serialized pairs without deserializing them
+	 */
+	public static class Comparator extends PairOfStrings.Comparator {
+
+		public Comparator() {
+			super(PairOfTexts.class);
+		}
+	}
+
+	/**
+	 * Compares serialized pairs by their left element only. Used as grouping
+	 * comparator, it hands all pairs with the same left element to a single
+	 * reduce() call, still sorted by the right element.
+	 */
+	public static class LeftComparator extends WritableComparator {
+
+		public LeftComparator() {
+			super(PairOfTexts.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			try {
+				int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+				int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+				return PairOfStrings.Comparator.compareUtf8(b1, s1 + n1,
+						readVInt(b1, s1), b2, s2 + n2, readVInt(b2, s2));
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		public int compare(WritableComparable a, WritableComparable b) {
+			Text l1 = ((PairOfTexts) a).leftElement;
+			Text l2 = ((PairOfTexts) b).leftElement;
+			return PairOfStrings.Comparator.compareUtf8(l1.getBytes(), 0,
+					l1.getLength(), l2.getBytes(), 0, l2.getLength());
+		}
+	}
+
+	/**
+	 * Compares serialized {@link Text} keys in the order of the left element
+	 * of a pair, i.e., like {@link String#compareTo(String)} rather than by
+	 * raw bytes. Lets the stripes jobs sort their left words exactly like the
+	 * pairs jobs do.
+	 */
+	public static class TextComparator extends WritableComparator {
+
+		public TextComparator() {
+			super(Text.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			try {
+				int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+				int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+				return PairOfStrings.Comparator.compareUtf8(b1, s1 + n1,
+						readVInt(b1, s1), b2, s2 + n2, readVInt(b2, s2));
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		public int compare(WritableComparable a, WritableComparable b) {
+			Text t1 = (Text) a;
+			Text t2 = (Text) b;
+			return PairOfStrings.Comparator.compareUtf8(t1.getBytes(), 0,
+					t1.getLength(), t2.getBytes(), 0, t2.getLength());
+		}
+	}
+
+	static {
+		// Register this comparator so that the shuffle sort uses it
+		WritableComparator.define(PairOfTexts.class, new Comparator());
+	}
+}
@@ -0,0 +1,277 @@
+package hk.ust.comp4651;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * A local cache of parsed part files for the Analyze tools. The records of a
+ * part are kept as a snapshot file holding the fields already split,
+ * length-prefixed, which is mapped and replayed to the handler instead of
+ * reading and splitting the part again.
+ *
+ * A part is identified by its qualified path, length, modification time
+ * and, if {@link #CHECKSUM_KEY} is set, the checksum reported by its file
+ * system; a part that changed has a new fingerprint and is parsed again.
+ * Snapshots are evicted least recently used first once the cache exceeds
+ * {@link #SIZE_KEY}. Parts larger than 1 GB are never cached.
+ *
+ * Snapshot layout: int MAGIC, int VERSION, vint length and UTF-8 bytes of
+ * the fingerprint, then for every record a vint field count followed by
+ * vint length and bytes of every field.
+ */
+public class PartCache {
+	private static final Logger LOG = Logger.getLogger(PartCache.class);
+
+	// Local directory of the cache, caching is off if unset
+	public static final String DIR_KEY = "analyze.cache.dir";
+
+	// Maximum size of the cache in MB
+	public static final String SIZE_KEY = "analyze.cache.size.mb";
+
+	// Also fingerprint parts by file system checksum, which HDFS computes
+	// from the block checksums without reading the data
+	public static final String CHECKSUM_KEY = "analyze.cache.checksum";
+
+	private static final int MAGIC = 0x50525443; // "PRTC"
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".rec";
+	private static final long MAX_PART = 1L << 30;
+
+	private static final Object EVICTION = new Object();
+
+	private PartCache() {
+	}
+
+	/**
+	 * Streams the records of a part file to handler, from its snapshot if
+	 * the part is cached and unchanged, or by scanning the part otherwise,
+	 * caching it when the whole file was read.
+	 */
+	public static void scan(FileSystem fs, Path path,
+			TextRecordScanner.Handler handler) throws IOException {
+		Configuration conf = fs.getConf();
+		String dir = conf.get(DIR_KEY);
+		FileStatus status = dir == null ? null : fs.getFileStatus(path);
+		if (status == null || status.getLen() > MAX_PART) {
+			TextRecordScanner.scan(fs, path, handler);
+			return;
+		}
+
+		byte[] fingerprint = fingerprint(fs, status).getBytes("UTF-8");
+		File cacheDir = new File(dir);
+		File snapshot = new File(cacheDir, MD5Hash.digest(fingerprint)
+				+ SUFFIX);
+		if (replay(snapshot, fingerprint, handler)) {
+			// The modification time of a snapshot is its last use
+			snapshot.setLastModified(System.currentTimeMillis());
+			return;
+		}
+
+		cacheDir.mkdirs();
+		File tmp = File.createTempFile(snapshot.getName(), ".tmp", cacheDir);
+		boolean complete = false;
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp),
+							1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				WritableUtils.writeVInt(out, fingerprint.length);
+				out.write(fingerprint);
+				Recorder recorder = new Recorder(out, handler);
+				TextRecordScanner.scan(fs, path, recorder);
+				complete = !recorder.stopped;
+			} finally {
+				out.close();
+			}
+			if (complete) {
+				snapshot.delete();
+				complete = tmp.renameTo(snapshot);
+			}
+		} finally {
+			if (!complete) {
+				tmp.delete();
+			}
+		}
+		if (complete) {
+			evict(cacheDir, conf.getLong(SIZE_KEY, 1024) << 20);
+		}
+	}
+
+	private static String fingerprint(FileSystem fs, FileStatus status)
+			throws IOException {
+		StringBuilder fingerprint = new StringBuilder();
+		fingerprint.append(fs.makeQualified(status.getPath())).append('\t')
+				.append(status.getLen()).append('\t')
+				.append(status.getModificationTime());
+		if (fs.getConf().getBoolean(CHECKSUM_KEY, false)) {
+			// Not every file system has checksums
+			FileChecksum checksum = fs.getFileChecksum(status.getPath());
+			if (checksum != null) {
+				fingerprint.append('\t').append(checksum.getAlgorithmName())
+						.append(':').append(
+								StringUtils.byteToHexString(checksum.getBytes()));
+			}
+		}
+		return fingerprint.toString();
+	}
+
+	/*
+	 * Hands the records of a snapshot to handler. Returns false, before any
+	 * record, if the snapshot is not the one of the fingerprint.
+	 */
+	private static boolean replay(File snapshot, byte[] fingerprint,
+			TextRecordScanner.Handler handler) throws IOException {
+		ByteBuffer buffer;
+		RandomAccessFile raf;
+		try {
+			raf = new RandomAccessFile(snapshot, "r");
+		} catch (FileNotFoundException e) {
+			// Evicted in the meantime
+			return false;
+		}
+		try {
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		} finally {
+			raf.close();
+		}
+
+		if (buffer.limit() < 8 || buffer.getInt() != MAGIC
+				|| buffer.getInt() != VERSION) {
+			return false;
+		}
+		int length = readVInt(buffer);
+		if (length != fingerprint.length || buffer.remaining() < length) {
+			return false;
+		}
+		for (int k = 0; k < length; k++) {
+			if (buffer.get() != fingerprint[k]) {
+				return false;
+			}
+		}
+
+		TextRecordScanner.Record record = new TextRecordScanner.Record();
+		while (buffer.hasRemaining()) {
+			record.clear(buffer);
+			int fields = readVInt(buffer);
+			for (int i = 0; i < fields; i++) {
+				int size = readVInt(buffer);
+				int start = buffer.position();
+				buffer.position(start + size);
+				record.addField(start, start + size);
+			}
+			if (!handler.record(record)) {
+				break;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Decodes a vint written by WritableUtils
+	 */
+	private static int readVInt(ByteBuffer buffer) {
+		byte first = buffer.get();
+		int length = WritableUtils.decodeVIntSize(first);
+		if (length == 1) {
+			return first;
+		}
+		long value = 0;
+		for (int k = 0; k < length - 1; k++) {
+			value = (value << 8) | (buffer.get() & 0xFF);
+		}
+		return (int) (WritableUtils.isNegativeVInt(first) ? (value ^ -1L)
+				: value);
+	}
+
+	/*
+	 * Deletes the least recently used snapshots until the cache fits in
+	 * maxBytes
+	 */
+	private static void evict(File cacheDir, long maxBytes) {
+		synchronized (EVICTION) {
+			File[] snapshots = cacheDir.listFiles(new FileFilter() {
+				public boolean accept(File file) {
+					return file.getName().endsWith(SUFFIX);
+				}
+			});
+			if (snapshots == null) {
+				return;
+			}
+			long total = 0;
+			for (File snapshot : snapshots) {
+				total += snapshot.length();
+			}
+			if (total <= maxBytes) {
+				return;
+			}
+
+			Arrays.sort(snapshots, new Comparator<File>() {
+				public int compare(File f1, File f2) {
+					long t1 = f1.lastModified();
+					long t2 = f2.lastModified();
+					return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+				}
+			});
+			for (int i = 0; i < snapshots.length && total > maxBytes; i++) {
+				long length = snapshots[i].length();
+				if (snapshots[i].delete()) {
+					total -= length;
+					LOG.debug("Evicted " + snapshots[i]);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Writes every record to the snapshot before handing it on
+	 */
+	private static class Recorder implements TextRecordScanner.Handler {
+		private final DataOutputStream out;
+		private final TextRecordScanner.Handler handler;
+		private final Text field = new Text();
+		boolean stopped;
+
+		Recorder(DataOutputStream out, TextRecordScanner.Handler handler) {
+			this.out = out;
+			this.handler = handler;
+		}
+
+		public boolean record(TextRecordScanner.Record record)
+				throws IOException {
+			WritableUtils.writeVInt(out, record.size());
+			for (int i = 0; i < record.size(); i++) {
+				record.text(i, field);
+				WritableUtils.writeVInt(out, field.getLength());
+				out.write(field.getBytes(), 0, field.getLength());
+			}
+			// A partial snapshot is not kept
+			stopped = !handler.record(record);
+			return !stopped;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package hk.ust.comp4651;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Reads the part files of a job's output directory concurrently, one file
+ * per task on a bounded thread pool, and streams every record to a
+ * {@link TextRecordScanner.Handler}. The Analyze tools hand the records
+ * straight to a concurrent map instead of building a map per file and
+ * merging them.
+ */
+public class PartFileReader {
+
+	/*
+	 * Maximum number of part files read at the same time, defaults to the
+	 * number of cores
+	 */
+	public static final String THREADS_KEY = "analyze.reader.threads";
+
+	private PartFileReader() {
+	}
+
+	/**
+	 * Returns the part files of an output directory, skipping the files and
+	 * directories whose name starts with '_' (logs, markers, indexes).
+	 */
+	public static List<Path> listParts(Path dir, FileSystem fs)
+			throws IOException {
+		List<Path> parts = new ArrayList<Path>();
+		for (FileStatus status : fs.listStatus(dir)) {
+			if (!status.getPath().getName().startsWith("_")) {
+				parts.add(status.getPath());
+			}
+		}
+		return parts;
+	}
+
+	/**
+	 * Reads every part file of dir and returns once all records were
+	 * handled. The handler is called from several threads at once, so it
+	 * must be thread-safe; returning false stops reading the current file.
+	 * The first failure is rethrown after the remaining files are done.
+	 */
+	public static void readDirectory(Path dir, final FileSystem fs,
+			final TextRecordScanner.Handler handler) throws IOException {
+		List<Path> parts = listParts(dir, fs);
+		if (parts.isEmpty()) {
+			return;
+		}
+
+		int threads = Math.min(parts.size(), fs.getConf().getInt(THREADS_KEY,
+				Runtime.getRuntime().availableProcessors()));
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,
+				threads));
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (final Path part : parts) {
+				results.add(pool.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						readFile(part, fs, handler);
+						return null;
+					}
+				}));
+			}
+
+			IOException failure = null;
+			for (Future<Void> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause() instanceof IOException ? (IOException) e
+								.getCause() : new IOException(e.getCause());
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while reading " + dir);
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Streams the records of a single file to handler, through the
+	 * {@link PartCache} if one is configured.
+	 */
+	public static void readFile(Path path, FileSystem fs,
+			TextRecordScanner.Handler handler) throws IOException {
+		PartCache.scan(fs, path, handler);
+	}
+}
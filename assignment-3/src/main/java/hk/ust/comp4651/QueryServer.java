@@ -0,0 +1,371 @@
+package hk.ust.comp4651;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+/**
+ * Serves word and bigram statistics from the output of {@link WordCount}
+ * and of a bigram frequency job, loaded once and kept in memory, so that a
+ * query costs a lookup instead of a JVM start and a scan of the output.
+ *
+ * Clients connect over TCP and send one query per line; every answer ends
+ * with an empty line, and connections stay open for further queries:
+ *
+ * <pre>
+ * COUNT word          count of a word
+ * TOP n               the n most frequent words
+ * SINGLETONS          number of words that appear only once
+ * FREQ left [right]   frequency of a bigram, or the count of left
+ * NEXT word n         the n most frequent successors of a word
+ * QUIT                closes the connection
+ * </pre>
+ *
+ * Each client is served by its own thread. The output directories are
+ * polled for a new {@code _SUCCESS} marker; a rerun job is loaded in the
+ * background and swapped in once complete, queries being answered from the
+ * previous output meanwhile.
+ */
+public class QueryServer extends Configured implements Tool {
+	private static final Logger LOG = Logger.getLogger(QueryServer.class);
+
+	// Milliseconds between two checks for new output, 0 to never reload
+	public static final String RELOAD_INTERVAL_KEY = "query.reload.interval.ms";
+
+	private static final String SUCCESS = "_SUCCESS";
+
+	/**
+	 * Creates an instance of this tool.
+	 */
+	public QueryServer() {
+	}
+
+	private static final String WORD_COUNT = "wordCount";
+	private static final String BIGRAM_FREQUENCY = "bigramFrequency";
+	private static final String PORT = "port";
+
+	private Path wordCountPath;
+	private Path bigramPath;
+	private volatile Snapshot snapshot;
+
+	/**
+	 * The statistics of one version of the job outputs. A snapshot is never
+	 * modified, queries keep using the one they started with.
+	 */
+	private static class Snapshot {
+		// Words in the order of MapUtil.sortByValue
+		String[] words = new String[0];
+		int[] counts = new int[0];
+		Map<String, Integer> ranks = new HashMap<String, Integer>();
+		long singletons;
+		long wordCountStamp = -1;
+
+		BigramStore bigrams;
+		long bigramStamp = -1;
+	}
+
+	/**
+	 * Runs this tool.
+	 */
+	@SuppressWarnings({ "static-access" })
+	public int run(String[] args) throws Exception {
+		Options options = new Options();
+
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("WordCount output path").create(WORD_COUNT));
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("bigram frequency output path")
+				.create(BIGRAM_FREQUENCY));
+		options.addOption(OptionBuilder.withArgName("num").hasArg()
+				.withDescription("port to listen on").create(PORT));
+
+		CommandLine cmdline;
+		CommandLineParser parser = new GnuParser();
+
+		try {
+			cmdline = parser.parse(options, args);
+		} catch (ParseException exp) {
+			System.err.println("Error parsing command line: "
+					+ exp.getMessage());
+			return -1;
+		}
+
+		// Lack of arguments
+		if ((!cmdline.hasOption(WORD_COUNT) && !cmdline
+				.hasOption(BIGRAM_FREQUENCY)) || !cmdline.hasOption(PORT)) {
+			System.out.println("args: " + Arrays.toString(args));
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.setWidth(120);
+			formatter.printHelp(this.getClass().getName(), options);
+			ToolRunner.printGenericCommandUsage(System.out);
+			return -1;
+		}
+
+		wordCountPath = cmdline.hasOption(WORD_COUNT) ? new Path(
+				cmdline.getOptionValue(WORD_COUNT)) : null;
+		bigramPath = cmdline.hasOption(BIGRAM_FREQUENCY) ? new Path(
+				cmdline.getOptionValue(BIGRAM_FREQUENCY)) : null;
+		int port = Integer.parseInt(cmdline.getOptionValue(PORT));
+		long interval = getConf().getLong(RELOAD_INTERVAL_KEY, 10000);
+
+		LOG.info("Tool: " + QueryServer.class.getSimpleName());
+		LOG.info(" - word count path: " + wordCountPath);
+		LOG.info(" - bigram frequency path: " + bigramPath);
+		LOG.info(" - port: " + port);
+
+		snapshot = load(new Snapshot());
+
+		ThreadFactory daemons = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		if (interval > 0) {
+			ScheduledExecutorService reloader = Executors
+					.newSingleThreadScheduledExecutor(daemons);
+			reloader.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						snapshot = load(snapshot);
+					} catch (Exception e) {
+						LOG.warn("Keeping the previous output, reload failed", e);
+					}
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+
+		ExecutorService clients = Executors.newCachedThreadPool(daemons);
+		ServerSocket server = new ServerSocket(port, 128,
+				InetAddress.getByName(null));
+		LOG.info("Listening on " + server.getLocalSocketAddress());
+		try {
+			while (true) {
+				final Socket socket = server.accept();
+				clients.execute(new Runnable() {
+					public void run() {
+						serve(socket);
+					}
+				});
+			}
+		} finally {
+			server.close();
+			clients.shutdownNow();
+		}
+	}
+
+	/*
+	 * Returns a snapshot with every output whose _SUCCESS marker changed
+	 * since current reloaded, or current itself if none did. An output
+	 * without a marker is being rewritten and keeps its previous version.
+	 */
+	private Snapshot load(Snapshot current) throws IOException {
+		long wordCountStamp = stamp(wordCountPath);
+		long bigramStamp = stamp(bigramPath);
+		boolean wordCountChanged = wordCountStamp >= 0
+				&& wordCountStamp != current.wordCountStamp;
+		boolean bigramChanged = bigramStamp >= 0
+				&& bigramStamp != current.bigramStamp;
+		if (!wordCountChanged && !bigramChanged) {
+			return current;
+		}
+
+		Snapshot next = new Snapshot();
+		if (wordCountChanged) {
+			loadWordCount(next);
+			next.wordCountStamp = wordCountStamp;
+			LOG.info("Loaded " + next.words.length + " words from "
+					+ wordCountPath);
+		} else {
+			next.words = current.words;
+			next.counts = current.counts;
+			next.ranks = current.ranks;
+			next.singletons = current.singletons;
+			next.wordCountStamp = current.wordCountStamp;
+		}
+		if (bigramChanged) {
+			final BigramStore.Builder builder = new BigramStore.Builder();
+			PartFileReader.readDirectory(bigramPath,
+					bigramPath.getFileSystem(getConf()),
+					new TextRecordScanner.Handler() {
+						public boolean record(TextRecordScanner.Record record)
+								throws IOException {
+							builder.add(record);
+							return true;
+						}
+					});
+			next.bigrams = builder.build();
+			next.bigramStamp = bigramStamp;
+			LOG.info("Loaded " + next.bigrams.size() + " bigrams from "
+					+ bigramPath);
+		} else {
+			next.bigrams = current.bigrams;
+			next.bigramStamp = current.bigramStamp;
+		}
+		return next;
+	}
+
+	private void loadWordCount(Snapshot next) throws IOException {
+		Map<String, IntWritable> counts = AnalyzeWordCount.readDirectory(
+				wordCountPath, wordCountPath.getFileSystem(getConf()),
+				Integer.MAX_VALUE);
+		List<Map.Entry<String, IntWritable>> entries = new ArrayList<Map.Entry<String, IntWritable>>(
+				counts.entrySet());
+		Collections.sort(entries, MapUtil.<String, IntWritable> byValueDescending());
+
+		next.words = new String[entries.size()];
+		next.counts = new int[entries.size()];
+		next.ranks = new HashMap<String, Integer>(entries.size() * 2);
+		for (int i = 0; i < entries.size(); i++) {
+			Map.Entry<String, IntWritable> entry = entries.get(i);
+			next.words[i] = entry.getKey();
+			next.counts[i] = entry.getValue().get();
+			next.ranks.put(entry.getKey(), i);
+			if (next.counts[i] == 1) {
+				next.singletons++;
+			}
+		}
+	}
+
+	/*
+	 * Returns the modification time of the _SUCCESS marker of an output, or
+	 * -1 if there is none
+	 */
+	private long stamp(Path output) throws IOException {
+		if (output == null) {
+			return -1;
+		}
+		Path marker = new Path(output, SUCCESS);
+		FileSystem fs = marker.getFileSystem(getConf());
+		if (!fs.exists(marker)) {
+			return -1;
+		}
+		FileStatus status = fs.getFileStatus(marker);
+		return status.getModificationTime();
+	}
+
+	private void serve(Socket socket) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), "UTF-8"));
+			Writer out = new BufferedWriter(new OutputStreamWriter(
+					socket.getOutputStream(), "UTF-8"));
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] terms = line.trim().split("\\s+");
+				if ("QUIT".equalsIgnoreCase(terms[0])) {
+					break;
+				}
+				try {
+					answer(snapshot, terms, out);
+				} catch (IllegalArgumentException e) {
+					out.write("ERROR " + e.getMessage() + "\n");
+				}
+				out.write("\n");
+				out.flush();
+			}
+		} catch (IOException e) {
+			LOG.debug("Connection closed: " + e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing left to clean up
+			}
+		}
+	}
+
+	private static void answer(Snapshot s, String[] terms, Writer out)
+			throws IOException {
+		String command = terms[0].toUpperCase();
+		if ("COUNT".equals(command) && terms.length == 2) {
+			Integer rank = s.ranks.get(terms[1]);
+			out.write((rank == null ? 0 : s.counts[rank]) + "\n");
+		} else if ("TOP".equals(command) && terms.length == 2) {
+			int n = Math.min(parseCount(terms[1]), s.words.length);
+			for (int i = 0; i < n; i++) {
+				out.write(s.words[i] + "\t" + s.counts[i] + "\n");
+			}
+		} else if ("SINGLETONS".equals(command) && terms.length == 1) {
+			out.write(s.singletons + "\n");
+		} else if ("FREQ".equals(command)
+				&& (terms.length == 2 || terms.length == 3)) {
+			int pair = bigrams(s).find(terms[1],
+					terms.length == 3 ? terms[2] : "");
+			out.write((pair < 0 ? 0f : bigrams(s).value(pair)) + "\n");
+		} else if ("NEXT".equals(command) && terms.length == 3) {
+			BigramStore store = bigrams(s);
+			int n = parseCount(terms[2]);
+			int l = store.leftIndex(terms[1]);
+			int size = l < 0 ? 0 : store.endPair(l) - store.firstPair(l);
+			for (int rank = 0; rank < size && n > 0; rank++) {
+				int pair = store.topPair(l, rank);
+				String right = store.right(pair);
+				// Skip the marginal
+				if (!right.isEmpty()) {
+					out.write(right + "\t" + store.value(pair) + "\n");
+					n--;
+				}
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown query: "
+					+ Arrays.toString(terms));
+		}
+	}
+
+	private static BigramStore bigrams(Snapshot s) {
+		if (s.bigrams == null) {
+			throw new IllegalArgumentException("No bigram frequencies loaded");
+		}
+		return s.bigrams;
+	}
+
+	private static int parseCount(String n) {
+		try {
+			return Integer.parseInt(n);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not a number: " + n);
+		}
+	}
+
+	/**
+	 * Dispatches command-line arguments to the tool via the {@code ToolRunner}.
+	 */
+	public static void main(String[] args) throws Exception {
+		ToolRunner.run(new QueryServer(), args);
+	}
+}
@@ -0,0 +1,217 @@
+package hk.ust.comp4651;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.log4j.Logger;
+
+/**
+ * Partitions bigrams on their left element like the hash partitioners of the
+ * pairs jobs, but balances the estimated load of each reducer using a
+ * left-word histogram sampled from the input before the job starts.
+ *
+ * Left words whose sampled load alone exceeds the average load of a reducer
+ * get a dedicated reducer. The remaining sampled words are assigned, heaviest
+ * first, to the least loaded of the other reducers, and words that were not
+ * sampled are hashed over those reducers. All pairs with the same left word
+ * still go to the same reducer.
+ */
+public class SkewAwarePartitioner<V> extends Partitioner<PairOfTexts, V>
+		implements Configurable {
+	private static final Logger LOG = Logger
+			.getLogger(SkewAwarePartitioner.class);
+
+	/*
+	 * Location of the partition file, written by writePartitionFile()
+	 */
+	public static final String PARTITION_FILE_KEY = "bigram.skew.partition.file";
+
+	/*
+	 * Maximum number of sampled words kept in the partition file, see
+	 * LeftWordSampler for the sampling parameters
+	 */
+	public static final String MAX_WORDS_KEY = "bigram.skew.max.words";
+	private static final int DEFAULT_MAX_WORDS = 100000;
+
+	private static final int MAGIC = 0x534b4557; // "SKEW"
+	private static final int VERSION = 1;
+
+	private Configuration conf;
+	private int numPartitions;
+	private int[] openPartitions;
+	private OpenHashMapStringIntWritable assignment;
+
+	@Override
+	public int getPartition(PairOfTexts key, V value, int numReduceTasks) {
+		Text left = key.getLeftElement();
+		int hash = key.leftHashCode() & Integer.MAX_VALUE;
+		if (numReduceTasks != numPartitions || openPartitions.length == 0) {
+			// The plan was made for another number of reducers
+			return hash % numReduceTasks;
+		}
+
+		int e = assignment.indexOf(left.getBytes(), 0, left.getLength());
+		if (e >= 0) {
+			return assignment.valueAt(e);
+		}
+		return openPartitions[hash % openPartitions.length];
+	}
+
+	@Override
+	public Configuration getConf() {
+		return conf;
+	}
+
+	/*
+	 * Loads the partition file named in the configuration
+	 */
+	@Override
+	public void setConf(Configuration conf) {
+		this.conf = conf;
+		String file = conf.get(PARTITION_FILE_KEY);
+		if (file == null) {
+			throw new IllegalArgumentException(PARTITION_FILE_KEY
+					+ " is not set!");
+		}
+
+		Path path = new Path(file);
+		try {
+			FileSystem fs = path.getFileSystem(conf);
+			DataInputStream in = fs.open(path);
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					throw new IOException("Not a partition file: " + path);
+				}
+				numPartitions = WritableUtils.readVInt(in);
+				openPartitions = new int[WritableUtils.readVInt(in)];
+				for (int i = 0; i < openPartitions.length; i++) {
+					openPartitions[i] = WritableUtils.readVInt(in);
+				}
+				int numWords = WritableUtils.readVInt(in);
+				assignment = new OpenHashMapStringIntWritable(numWords);
+				byte[] word = new byte[64];
+				for (int i = 0; i < numWords; i++) {
+					int length = WritableUtils.readVInt(in);
+					if (word.length < length) {
+						word = new byte[length * 2];
+					}
+					in.readFully(word, 0, length);
+					assignment.increment(word, 0, length,
+							WritableUtils.readVInt(in));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to read partition file "
+					+ path, e);
+		}
+	}
+
+	/**
+	 * Samples the left words of the job's input, plans the partitions for the
+	 * job's number of reducers and writes them to path. The job is set up to
+	 * use this partitioner with that file.
+	 */
+	public static void writePartitionFile(Job job, Path path)
+			throws IOException, InterruptedException {
+		Configuration conf = job.getConfiguration();
+		int numPartitions = job.getNumReduceTasks();
+
+		OpenHashMapStringIntWritable histogram = LeftWordSampler.sample(job);
+		long total = 0;
+		for (int i = 0; i < histogram.size(); i++) {
+			total += histogram.valueAt(i);
+		}
+
+		// Heaviest words first
+		final OpenHashMapStringIntWritable h = histogram;
+		List<Integer> words = new ArrayList<Integer>(histogram.size());
+		for (int i = 0; i < histogram.size(); i++) {
+			words.add(i);
+		}
+		Collections.sort(words, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return h.valueAt(b) < h.valueAt(a) ? -1
+						: h.valueAt(b) > h.valueAt(a) ? 1 : 0;
+			}
+		});
+
+		int maxWords = Math.min(words.size(),
+				conf.getInt(MAX_WORDS_KEY, DEFAULT_MAX_WORDS));
+		int[] partitionOf = new int[maxWords];
+
+		// A word heavier than the average load gets a reducer of its own,
+		// while at least one reducer is kept for everything else
+		double average = (double) total / numPartitions;
+		int numDedicated = 0;
+		int k = 0;
+		while (k < maxWords && numDedicated < numPartitions - 1
+				&& histogram.valueAt(words.get(k)) > average) {
+			partitionOf[k] = numDedicated;
+			numDedicated++;
+			k++;
+		}
+
+		// Assign the rest, heaviest first, to the least loaded open reducer
+		PriorityQueue<long[]> open = new PriorityQueue<long[]>(numPartitions,
+				new Comparator<long[]>() {
+					public int compare(long[] a, long[] b) {
+						return a[0] != b[0] ? (a[0] < b[0] ? -1 : 1)
+								: (a[1] < b[1] ? -1 : a[1] > b[1] ? 1 : 0);
+					}
+				});
+		for (int p = numDedicated; p < numPartitions; p++) {
+			open.add(new long[] { 0, p });
+		}
+		for (; k < maxWords; k++) {
+			long[] least = open.poll();
+			partitionOf[k] = (int) least[1];
+			least[0] += histogram.valueAt(words.get(k));
+			open.add(least);
+		}
+
+		FileSystem fs = path.getFileSystem(conf);
+		DataOutputStream out = fs.create(path, true);
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			WritableUtils.writeVInt(out, numPartitions);
+			WritableUtils.writeVInt(out, numPartitions - numDedicated);
+			for (int p = numDedicated; p < numPartitions; p++) {
+				WritableUtils.writeVInt(out, p);
+			}
+			WritableUtils.writeVInt(out, maxWords);
+			Text word = new Text();
+			for (int i = 0; i < maxWords; i++) {
+				histogram.keyAt(words.get(i), word);
+				WritableUtils.writeVInt(out, word.getLength());
+				out.write(word.getBytes(), 0, word.getLength());
+				WritableUtils.writeVInt(out, partitionOf[i]);
+			}
+		} finally {
+			out.close();
+		}
+
+		LOG.info("Sampled " + total + " bigrams with " + histogram.size()
+				+ " distinct left words, " + numDedicated
+				+ " of them get a dedicated reducer");
+
+		conf.set(PARTITION_FILE_KEY, fs.makeQualified(path).toString());
+		job.setPartitionerClass(SkewAwarePartitioner.class);
+	}
+}
@@ -0,0 +1,105 @@
+package hk.ust.comp4651;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * Aggregates stripes across all records of a map task, used by the in-mapper
+ * combining mode of the stripes jobs. Every left word owns one stripe, which
+ * is emitted once when the task finishes, or earlier when the buffered
+ * stripes grow past the configured number of entries or estimated bytes.
+ *
+ * Left words are indexed by an {@link OpenHashMapStringIntWritable} whose
+ * entry index doubles as the position of the stripe. The byte estimate is
+ * the heap held by the stripes and the index at their current capacity, so
+ * it counts the fixed cost of every stripe and the arrays a stripe keeps
+ * after growing. Stripes are dropped on a flush rather than cleared for
+ * reuse, so that a stripe that grew large once does not hold on to its
+ * arrays.
+ */
+public class StripeAggregator {
+
+	/*
+	 * Counters reported by the in-mapper combining mode
+	 */
+	public static enum Counter {
+		INPUT_BIGRAMS, OUTPUT_STRIPES, FLUSHES
+	}
+
+	/*
+	 * Flush thresholds, the number of buffered stripe entries and the
+	 * estimated heap of the buffered stripes in bytes
+	 */
+	public static final String MAX_ENTRIES_KEY = "bigram.inmapper.max.entries";
+	public static final String MAX_BYTES_KEY = "bigram.inmapper.max.bytes";
+	private static final int DEFAULT_MAX_ENTRIES = 1 << 20;
+	private static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+	private OpenHashMapStringIntWritable leftWords = new OpenHashMapStringIntWritable();
+	private List<OpenHashMapStringIntWritable> stripes = new ArrayList<OpenHashMapStringIntWritable>();
+	private final Text key = new Text();
+	private final int maxEntries;
+	private final long maxBytes;
+	private long entries;
+	private long bytes;
+
+	public StripeAggregator(Configuration conf) {
+		maxEntries = conf.getInt(MAX_ENTRIES_KEY, DEFAULT_MAX_ENTRIES);
+		maxBytes = conf.getLong(MAX_BYTES_KEY, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Adds inc to the count of the right word in the stripe of the left word.
+	 */
+	public void add(Text left, Text right, int inc) {
+		int i = leftWords.increment(left.getBytes(), 0, left.getLength(), 0);
+		if (i == stripes.size()) {
+			OpenHashMapStringIntWritable stripe = new OpenHashMapStringIntWritable();
+			stripes.add(stripe);
+			bytes += stripe.heapBytes();
+		}
+		OpenHashMapStringIntWritable stripe = stripes.get(i);
+		int size = stripe.size();
+		long heap = stripe.heapBytes();
+		stripe.increment(right, inc);
+		if (stripe.size() > size) {
+			entries++;
+			bytes += stripe.heapBytes() - heap;
+		}
+	}
+
+	/**
+	 * Returns true when the buffered stripes should be flushed
+	 */
+	public boolean isFull() {
+		return entries >= maxEntries
+				|| bytes + leftWords.heapBytes() >= maxBytes;
+	}
+
+	/**
+	 * Emits every buffered stripe once and releases the buffer.
+	 */
+	public void flush(
+			TaskInputOutputContext<?, ?, Text, OpenHashMapStringIntWritable> context)
+			throws IOException, InterruptedException {
+		if (leftWords.isEmpty()) {
+			return;
+		}
+		for (int i = 0; i < leftWords.size(); i++) {
+			OpenHashMapStringIntWritable stripe = stripes.get(i);
+			leftWords.keyAt(i, key);
+			context.write(key, stripe);
+		}
+		context.getCounter(Counter.OUTPUT_STRIPES).increment(leftWords.size());
+		context.getCounter(Counter.FLUSHES).increment(1);
+		stripes = new ArrayList<OpenHashMapStringIntWritable>();
+		leftWords = new OpenHashMapStringIntWritable();
+		entries = 0;
+		bytes = 0;
+	}
+}
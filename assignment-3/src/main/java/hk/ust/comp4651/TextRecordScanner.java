@@ -0,0 +1,431 @@
+package hk.ust.comp4651;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Parses the text output of a job (lines of whitespace separated fields)
+ * directly from bytes. Files on the local file system are memory-mapped,
+ * other file systems are streamed through a reusable buffer. Every line is
+ * handed to a {@link Handler} as a {@link Record}, a reusable view of the
+ * line's fields, so scanning does not allocate per line; numbers are parsed
+ * in place and only the fields a handler asks for are decoded.
+ *
+ * Fields are split like {@code line.trim().split("\\s+")} and lines end at '\n',
+ * with an optional '\r' before it, as with {@code BufferedReader}.
+ */
+public class TextRecordScanner {
+
+	/**
+	 * Receives the records of a file, one at a time. The record is only
+	 * valid during the call.
+	 *
+	 * @return false to stop scanning
+	 */
+	public interface Handler {
+		boolean record(Record record) throws IOException;
+	}
+
+	// Files are mapped in windows of at most this size
+	private static final int MAX_MAPPING = 1 << 30;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private TextRecordScanner() {
+	}
+
+	/**
+	 * Scans a whole file
+	 */
+	public static void scan(FileSystem fs, Path path, Handler handler)
+			throws IOException {
+		scan(fs, path, 0, handler);
+	}
+
+	/**
+	 * Scans a file from offset start, which must be at the start of a line.
+	 */
+	public static void scan(FileSystem fs, Path path, long start,
+			Handler handler) throws IOException {
+		if ("file".equals(fs.getUri().getScheme())) {
+			scanMapped(new File(fs.makeQualified(path).toUri().getPath()),
+					start, handler);
+		} else {
+			FSDataInputStream in = fs.open(path);
+			try {
+				in.seek(start);
+				scanStream(in, handler);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	private static void scanMapped(File file, long start, Handler handler)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			Record record = new Record();
+			long pos = start;
+			while (pos < size) {
+				int length = (int) Math.min(MAX_MAPPING, size - pos);
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+						pos, length);
+				int consumed = scan(buffer, length, pos + length == size,
+						record, handler);
+				if (consumed < 0) {
+					return;
+				}
+				if (consumed == 0) {
+					throw new IOException("Line longer than " + MAX_MAPPING
+							+ " bytes at offset " + pos + " of " + file);
+				}
+				// The next window starts at the line cut by this one
+				pos += consumed;
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void scanStream(InputStream in, Handler handler)
+			throws IOException {
+		byte[] bytes = new byte[BUFFER_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		Record record = new Record();
+		int length = 0;
+		boolean eof = false;
+		while (!eof) {
+			int n = in.read(bytes, length, bytes.length - length);
+			if (n < 0) {
+				eof = true;
+			} else {
+				length += n;
+			}
+
+			int consumed = scan(buffer, length, eof, record, handler);
+			if (consumed < 0) {
+				return;
+			}
+			// Keep the incomplete last line, growing the buffer for long ones
+			length -= consumed;
+			System.arraycopy(bytes, consumed, bytes, 0, length);
+			if (length == bytes.length) {
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+				buffer = ByteBuffer.wrap(bytes);
+			}
+		}
+	}
+
+	/*
+	 * Hands the complete lines of buffer[0, length) to the handler, the last
+	 * line being complete at the end of the file. Returns the number of bytes
+	 * consumed, or -1 if the handler stopped.
+	 */
+	private static int scan(ByteBuffer buffer, int length, boolean eof,
+			Record record, Handler handler) throws IOException {
+		int lineStart = 0;
+		int pos = 0;
+		while (true) {
+			while (pos < length && buffer.get(pos) != '\n') {
+				pos++;
+			}
+			if (pos == length && (!eof || lineStart == length)) {
+				return lineStart;
+			}
+
+			int lineEnd = pos;
+			if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+				lineEnd--;
+			}
+			record.set(buffer, lineStart, lineEnd);
+			if (!handler.record(record)) {
+				return -1;
+			}
+			if (pos == length) {
+				return length;
+			}
+			pos++;
+			lineStart = pos;
+		}
+	}
+
+	/**
+	 * The fields of one line, valid until the handler returns.
+	 */
+	public static final class Record {
+
+		private static final double[] POW10 = new double[23];
+		static {
+			POW10[0] = 1;
+			for (int i = 1; i < POW10.length; i++) {
+				POW10[i] = POW10[i - 1] * 10;
+			}
+		}
+
+		private ByteBuffer buffer;
+		private int[] starts = new int[4];
+		private int[] ends = new int[4];
+		private int size;
+		private byte[] scratch = new byte[64];
+
+		Record() {
+		}
+
+		void set(ByteBuffer buffer, int start, int end) {
+			this.buffer = buffer;
+			size = 0;
+			int pos = start;
+			while (true) {
+				while (pos < end && isWhitespace(buffer.get(pos))) {
+					pos++;
+				}
+				if (pos == end) {
+					return;
+				}
+				if (size == starts.length) {
+					starts = Arrays.copyOf(starts, size * 2);
+					ends = Arrays.copyOf(ends, size * 2);
+				}
+				starts[size] = pos;
+				while (pos < end && !isWhitespace(buffer.get(pos))) {
+					pos++;
+				}
+				ends[size++] = pos;
+			}
+		}
+
+		/*
+		 * Starts a record whose fields are given one by one with addField
+		 * instead of being split from a line
+		 */
+		void clear(ByteBuffer buffer) {
+			this.buffer = buffer;
+			size = 0;
+		}
+
+		void addField(int start, int end) {
+			if (size == starts.length) {
+				starts = Arrays.copyOf(starts, size * 2);
+				ends = Arrays.copyOf(ends, size * 2);
+			}
+			starts[size] = start;
+			ends[size++] = end;
+		}
+
+		/**
+		 * Returns the number of fields
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Returns the length in bytes of field i
+		 */
+		public int length(int i) {
+			return ends[i] - starts[i];
+		}
+
+		/**
+		 * Decodes field i, replacing malformed UTF-8
+		 */
+		public String string(int i) {
+			int length = copy(i);
+			try {
+				return Text.decode(scratch, 0, length, true);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * Copies the bytes of field i into text
+		 */
+		public void text(int i, Text text) {
+			text.set(scratch, 0, copy(i));
+		}
+
+		/**
+		 * Returns true if field i holds exactly the given bytes
+		 */
+		public boolean fieldEquals(int i, byte[] bytes) {
+			int start = starts[i];
+			if (ends[i] - start != bytes.length) {
+				return false;
+			}
+			for (int k = 0; k < bytes.length; k++) {
+				if (buffer.get(start + k) != bytes[k]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Compares field i with UTF-8 bytes in the order of
+		 * {@link String#compareTo(String)}
+		 */
+		public int compareField(int i, byte[] bytes) {
+			int length = copy(i);
+			return PairOfStrings.Comparator.compareUtf8(scratch, 0, length,
+					bytes, 0, bytes.length);
+		}
+
+		/**
+		 * Parses field i as a decimal int, with the same result as
+		 * {@link Integer#parseInt}. ASCII digits are converted in place;
+		 * anything else, including the non-ASCII digits parseInt accepts and
+		 * every malformed or overflowing field, is decoded and handed to
+		 * {@link Integer#parseInt}.
+		 */
+		public int intField(int i) {
+			int pos = starts[i];
+			int end = ends[i];
+			boolean negative = pos < end && buffer.get(pos) == '-';
+			if (negative || (pos < end && buffer.get(pos) == '+')) {
+				pos++;
+			}
+			if (pos == end) {
+				return Integer.parseInt(string(i));
+			}
+			long value = 0;
+			for (; pos < end; pos++) {
+				int digit = buffer.get(pos) - '0';
+				if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE + 1L) {
+					return Integer.parseInt(string(i));
+				}
+				value = value * 10 + digit;
+			}
+			value = negative ? -value : value;
+			if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+				return Integer.parseInt(string(i));
+			}
+			return (int) value;
+		}
+
+		/**
+		 * Parses field i as a float, with the same result as
+		 * {@link Float#parseFloat}. Plain decimals with up to 15 digits and
+		 * small exponents, which covers the output of
+		 * {@link Float#toString}, are converted in place; anything else is
+		 * decoded and handed to {@link Float#parseFloat}.
+		 */
+		public float floatField(int i) {
+			int pos = starts[i];
+			int end = ends[i];
+			boolean negative = pos < end && buffer.get(pos) == '-';
+			if (negative || (pos < end && buffer.get(pos) == '+')) {
+				pos++;
+			}
+
+			long mantissa = 0;
+			int digits = 0;
+			int exponent = 0;
+			boolean seenDigit = false;
+			boolean exact = true;
+			boolean fraction = false;
+			for (; pos < end; pos++) {
+				byte b = buffer.get(pos);
+				if (b == '.' && !fraction) {
+					fraction = true;
+					continue;
+				}
+				if (b < '0' || b > '9') {
+					break;
+				}
+				seenDigit = true;
+				if (digits < 15) {
+					mantissa = mantissa * 10 + (b - '0');
+					if (mantissa != 0) {
+						digits++;
+					}
+					if (fraction) {
+						exponent--;
+					}
+				} else {
+					exact = false;
+				}
+			}
+			if (pos < end && (buffer.get(pos) == 'E' || buffer.get(pos) == 'e')) {
+				pos++;
+				boolean negativeExponent = pos < end && buffer.get(pos) == '-';
+				if (negativeExponent || (pos < end && buffer.get(pos) == '+')) {
+					pos++;
+				}
+				int e = 0;
+				int start = pos;
+				for (; pos < end && pos - start < 4; pos++) {
+					int digit = buffer.get(pos) - '0';
+					if (digit < 0 || digit > 9) {
+						break;
+					}
+					e = e * 10 + digit;
+				}
+				if (pos == start) {
+					exact = false;
+				}
+				exponent += negativeExponent ? -e : e;
+			}
+
+			// Both the mantissa and the power of ten are exact doubles, so
+			// one multiplication or division rounds correctly
+			if (exact && seenDigit && pos == end && exponent >= -22
+					&& exponent <= 22) {
+				double d = exponent < 0 ? mantissa / POW10[-exponent]
+						: mantissa * POW10[exponent];
+				float f = (float) d;
+				if (!isMidpoint(d, f)) {
+					return negative ? -f : f;
+				}
+			}
+			return Float.parseFloat(string(i));
+		}
+
+		/*
+		 * Rounding the double to a float can only differ from rounding the
+		 * decimal when the double is exactly halfway between two floats
+		 */
+		private static boolean isMidpoint(double d, float f) {
+			if (Float.isInfinite(f)) {
+				return true;
+			}
+			if (d == f) {
+				return false;
+			}
+			float other = Math.nextAfter(f, d);
+			return ((double) f + (double) other) / 2 == d;
+		}
+
+		private int copy(int i) {
+			int start = starts[i];
+			int length = ends[i] - start;
+			if (scratch.length < length) {
+				scratch = new byte[Math.max(scratch.length * 2, length)];
+			}
+			for (int k = 0; k < length; k++) {
+				scratch[k] = buffer.get(start + k);
+			}
+			return length;
+		}
+
+		/*
+		 * The characters matched by the regex \s: [ \t\n\x0B\f\r]
+		 */
+		private static boolean isWhitespace(byte b) {
+			return b == ' ' || (b >= '\t' && b <= '\r');
+		}
+	}
+}
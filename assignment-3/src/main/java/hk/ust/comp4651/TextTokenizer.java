@@ -0,0 +1,135 @@
+package hk.ust.comp4651;
+
+import java.io.IOException;
+import java.nio.charset.MalformedInputException;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Splits the UTF-8 bytes of a {@link Text} on whitespace in place. It yields
+ * the same tokens as {@code line.trim().split("\\s+")} without decoding the
+ * line or allocating per token: each token is exposed as a byte range of the
+ * backing array, or copied into a reusable {@link Text}.
+ *
+ * Whitespace characters are all ASCII and UTF-8 never uses ASCII bytes inside
+ * a multi-byte sequence, so scanning bytes is safe.
+ *
+ * Usage:
+ *
+ * <pre>
+ * tokenizer.reset(value);
+ * while (tokenizer.next()) {
+ * 	tokenizer.token(word);
+ * 	...
+ * }
+ * </pre>
+ */
+public class TextTokenizer {
+
+	private byte[] bytes;
+	private int pos;
+	private int end;
+	private int tokenStart;
+	private int tokenLength;
+	private boolean tokenAscii;
+
+	/**
+	 * Starts tokenizing the contents of text. The tokenizer reads the backing
+	 * array directly, so text must not be modified until tokenizing is done.
+	 */
+	public void reset(Text text) {
+		reset(text.getBytes(), 0, text.getLength());
+	}
+
+	/**
+	 * Starts tokenizing bytes[start, start + length).
+	 */
+	public void reset(byte[] bytes, int start, int length) {
+		this.bytes = bytes;
+		this.pos = start;
+		this.end = start + length;
+		this.tokenStart = start;
+		this.tokenLength = 0;
+	}
+
+	/**
+	 * Advances to the next token.
+	 *
+	 * @return false if there are no more tokens
+	 */
+	public boolean next() {
+		while (pos < end && isWhitespace(bytes[pos])) {
+			pos++;
+		}
+		if (pos == end) {
+			tokenLength = 0;
+			return false;
+		}
+		tokenStart = pos;
+		int bits = 0;
+		while (pos < end && !isWhitespace(bytes[pos])) {
+			bits |= bytes[pos];
+			pos++;
+		}
+		tokenLength = pos - tokenStart;
+		tokenAscii = bits >= 0;
+		return true;
+	}
+
+	/**
+	 * Returns the array holding the current token
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the offset of the current token in {@link #getBytes()}
+	 */
+	public int start() {
+		return tokenStart;
+	}
+
+	/**
+	 * Returns the length in bytes of the current token
+	 */
+	public int length() {
+		return tokenLength;
+	}
+
+	/**
+	 * Copies the current token into text, reusing its buffer. Malformed UTF-8
+	 * is replaced the same way as {@link Text#toString()} does, which only
+	 * costs a validation pass for tokens with non-ASCII bytes.
+	 */
+	public void token(Text text) {
+		if (!tokenAscii) {
+			try {
+				Text.validateUTF8(bytes, tokenStart, tokenLength);
+			} catch (MalformedInputException e) {
+				text.set(tokenString());
+				return;
+			}
+		}
+		text.set(bytes, tokenStart, tokenLength);
+	}
+
+	/**
+	 * Decodes the current token into a String. Only for callers that really
+	 * need a String, as this allocates.
+	 */
+	public String tokenString() {
+		try {
+			return Text.decode(bytes, tokenStart, tokenLength, true);
+		} catch (IOException e) {
+			throw new IllegalStateException("Malformed UTF-8 token", e);
+		}
+	}
+
+	/*
+	 * The characters matched by the regex \s: [ \t\n\x0B\f\r]
+	 */
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || (b >= '\t' && b <= '\r');
+	}
+}
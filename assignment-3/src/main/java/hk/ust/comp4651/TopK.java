@@ -0,0 +1,77 @@
+package hk.ust.comp4651;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the k entries that come first in the order of
+ * {@link MapUtil#sortByValue(Map)} out of a stream of (key, value) pairs. It
+ * holds a min-heap of at most k entries, so memory is O(k) and each offer
+ * costs O(log k) at most; most offers only compare against the head.
+ *
+ * Offers are synchronized, so a single instance can be fed from the threads
+ * of a {@link PartFileReader}.
+ */
+public class TopK<K extends Comparable<? super K>, V extends Comparable<? super V>> {
+
+	private final int k;
+	private final Comparator<Map.Entry<K, V>> order;
+	private final PriorityQueue<Map.Entry<K, V>> heap;
+
+	public TopK(int k) {
+		this.k = k;
+		this.order = MapUtil.byValueDescending();
+		// The head of the heap is the entry that would be dropped first
+		this.heap = new PriorityQueue<Map.Entry<K, V>>(Math.max(1, k + 1),
+				Collections.reverseOrder(order));
+	}
+
+	/**
+	 * Offers an entry, kept only if it is among the k first ones so far
+	 */
+	public synchronized void offer(K key, V value) {
+		if (k <= 0) {
+			return;
+		}
+		Map.Entry<K, V> entry = new AbstractMap.SimpleImmutableEntry<K, V>(
+				key, value);
+		if (heap.size() < k) {
+			heap.add(entry);
+		} else if (order.compare(entry, heap.peek()) < 0) {
+			heap.poll();
+			heap.add(entry);
+		}
+	}
+
+	/**
+	 * Returns false if an entry with this value would certainly be dropped,
+	 * so callers can skip building its key
+	 */
+	public synchronized boolean accepts(V value) {
+		return k > 0
+				&& (heap.size() < k || value.compareTo(heap.peek().getValue()) >= 0);
+	}
+
+	/**
+	 * Offers every entry of a map
+	 */
+	public void offerAll(Map<K, V> map) {
+		for (Map.Entry<K, V> entry : map.entrySet()) {
+			offer(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Returns the kept entries, first one first
+	 */
+	public synchronized List<Map.Entry<K, V>> entries() {
+		List<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>(heap);
+		Collections.sort(entries, order);
+		return entries;
+	}
+}
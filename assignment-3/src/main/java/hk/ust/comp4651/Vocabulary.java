@@ -0,0 +1,274 @@
+package hk.ust.comp4651;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * A read-only dictionary mapping words to dense int ids, memory-mapped from a
+ * side file built by {@link BuildVocabulary}. Ids are assigned in the order
+ * of {@link String#compareTo(String)}, so that packed bigram ids sort like
+ * the words themselves. Id 0 is the empty word, which sorts before every
+ * real word (e.g., the marginal of the frequency jobs).
+ *
+ * File layout (big endian):
+ *
+ * <pre>
+ * int MAGIC, int VERSION, int size, int capacity
+ * int[size + 1]  offsets of the words in the byte section
+ * int[capacity]  open-addressing hash table of id + 1, 0 marks an empty slot
+ * byte[]         UTF-8 bytes of all words
+ * </pre>
+ *
+ * The hash table is part of the file, so opening a vocabulary costs a single
+ * mmap and lookups never allocate.
+ */
+public class Vocabulary {
+
+	private static final int MAGIC = 0x564f4342; // "VOCB"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+
+	/*
+	 * Name of the symlink in the task working directory
+	 */
+	private static final String CACHE_LINK = "vocabulary";
+
+	/*
+	 * Counters reported by jobs that encode words with a vocabulary
+	 */
+	public static enum Counter {
+		OUT_OF_VOCABULARY
+	}
+
+	private final ByteBuffer buffer;
+	private final int size;
+	private final int mask;
+	private final int offsetsStart;
+	private final int tableStart;
+	private final int bytesStart;
+	private byte[] scratch = new byte[64];
+
+	private Vocabulary(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a vocabulary file!");
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException("Unsupported vocabulary version: "
+					+ buffer.getInt(4));
+		}
+		size = buffer.getInt(8);
+		int capacity = buffer.getInt(12);
+		mask = capacity - 1;
+		offsetsStart = HEADER_BYTES;
+		tableStart = offsetsStart + 4 * (size + 1);
+		bytesStart = tableStart + 4 * capacity;
+	}
+
+	/**
+	 * Memory-maps a vocabulary file from the local file system.
+	 */
+	public static Vocabulary open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new Vocabulary(buffer);
+		} finally {
+			// The mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Ships the vocabulary at path to every task through the distributed
+	 * cache.
+	 */
+	public static void addToCache(Job job, Path path) throws IOException {
+		FileSystem fs = path.getFileSystem(job.getConfiguration());
+		URI uri = fs.makeQualified(path).toUri();
+		job.addCacheFile(URI.create(uri.toString() + "#" + CACHE_LINK));
+	}
+
+	/**
+	 * Opens the vocabulary shipped with {@link #addToCache(Job, Path)}.
+	 */
+	@SuppressWarnings("deprecation")
+	public static Vocabulary fromCache(TaskAttemptContext context)
+			throws IOException {
+		File link = new File(CACHE_LINK);
+		if (link.exists()) {
+			return open(link);
+		}
+
+		/*
+		 * Not every runner creates the symlink, look up the localized copy of
+		 * the cache file registered under its name, as other cache files
+		 * (-files, partition files) may come first
+		 */
+		String name = null;
+		URI[] uris = context.getCacheFiles();
+		for (int i = 0; uris != null && i < uris.length; i++) {
+			if (CACHE_LINK.equals(uris[i].getFragment())) {
+				name = new Path(uris[i].getPath()).getName();
+			}
+		}
+		Path[] files = context.getLocalCacheFiles();
+		for (int i = 0; name != null && files != null && i < files.length; i++) {
+			if (files[i].getName().equals(name)) {
+				return open(new File(files[i].toUri().getPath()));
+			}
+		}
+		throw new IOException("The vocabulary is not in the distributed cache!");
+	}
+
+	/**
+	 * Writes a vocabulary. The word at index i of words gets id i + 1, so
+	 * words must be distinct, non-empty and sorted.
+	 */
+	public static void write(List<String> words, OutputStream out)
+			throws IOException {
+		String previous = "";
+		for (String word : words) {
+			if (word.compareTo(previous) <= 0) {
+				throw new IllegalArgumentException(
+						"Words are not sorted or not distinct at: " + word);
+			}
+			previous = word;
+		}
+
+		int size = words.size() + 1;
+		int capacity = Integer.highestOneBit(size * 2 - 1) << 1;
+
+		byte[][] encoded = new byte[size][];
+		encoded[0] = new byte[0];
+		int[] offsets = new int[size + 1];
+		for (int id = 1; id < size; id++) {
+			ByteBuffer bb = Text.encode(words.get(id - 1), false);
+			encoded[id] = new byte[bb.limit()];
+			bb.get(encoded[id]);
+			offsets[id + 1] = offsets[id] + encoded[id].length;
+		}
+
+		int[] table = new int[capacity];
+		for (int id = 0; id < size; id++) {
+			int slot = OpenHashMapStringIntWritable.hash(encoded[id], 0,
+					encoded[id].length) & (capacity - 1);
+			while (table[slot] != 0) {
+				slot = (slot + 1) & (capacity - 1);
+			}
+			table[slot] = id + 1;
+		}
+
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+		dos.writeInt(size);
+		dos.writeInt(capacity);
+		for (int offset : offsets) {
+			dos.writeInt(offset);
+		}
+		for (int slot : table) {
+			dos.writeInt(slot);
+		}
+		for (byte[] word : encoded) {
+			dos.write(word);
+		}
+		dos.flush();
+	}
+
+	/**
+	 * Returns the number of ids, including the reserved empty word
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the id of the UTF-8 word in bytes[start, start + length), or -1
+	 * if the word is not in the vocabulary.
+	 */
+	public int id(byte[] bytes, int start, int length) {
+		int slot = OpenHashMapStringIntWritable.hash(bytes, start, length)
+				& mask;
+		while (true) {
+			int id = buffer.getInt(tableStart + 4 * slot) - 1;
+			if (id < 0) {
+				return -1;
+			}
+			if (matches(id, bytes, start, length)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Returns the id of the word held in text, or -1 if it is unknown
+	 */
+	public int id(Text text) {
+		return id(text.getBytes(), 0, text.getLength());
+	}
+
+	/**
+	 * Returns the word with the given id
+	 */
+	public String word(int id) {
+		int start = buffer.getInt(offsetsStart + 4 * id);
+		int length = buffer.getInt(offsetsStart + 4 * (id + 1)) - start;
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(bytesStart + start + i);
+		}
+		try {
+			return Text.decode(bytes);
+		} catch (IOException e) {
+			throw new IllegalStateException("Malformed word in vocabulary", e);
+		}
+	}
+
+	/**
+	 * Copies the word with the given id into text without creating a String
+	 */
+	public void word(int id, Text text) {
+		int start = buffer.getInt(offsetsStart + 4 * id);
+		int length = buffer.getInt(offsetsStart + 4 * (id + 1)) - start;
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(scratch.length * 2, length)];
+		}
+		for (int i = 0; i < length; i++) {
+			scratch[i] = buffer.get(bytesStart + start + i);
+		}
+		text.set(scratch, 0, length);
+	}
+
+	private boolean matches(int id, byte[] bytes, int start, int length) {
+		int from = buffer.getInt(offsetsStart + 4 * id);
+		int to = buffer.getInt(offsetsStart + 4 * (id + 1));
+		if (to - from != length) {
+			return false;
+		}
+		int pos = bytesStart + from;
+		for (int i = 0; i < length; i++) {
+			if (buffer.get(pos + i) != bytes[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
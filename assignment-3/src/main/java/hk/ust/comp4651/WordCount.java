@@ -18,9 +18,11 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.CombineTextInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.Tool;
@@ -40,23 +42,94 @@ public class WordCount extends Configured implements Tool {
 		// Reuse objects to save overhead of object creation.
 		private final static IntWritable ONE = new IntWritable(1);
 		private final static Text WORD = new Text();
+		private final TextTokenizer tokenizer = new TextTokenizer();
 
 		@Override
 		public void map(LongWritable key, Text value, Context context)
 				throws IOException, InterruptedException {
-			String line = ((Text) value).toString();
-			String[] words = line.trim().split("\\s+");
-			for (String w: words) {
-				// Skip empty words
-				if (w.length() == 0) {
-					continue;
-				}
-				WORD.set(w);
+			tokenizer.reset(value);
+			while (tokenizer.next()) {
+				tokenizer.token(WORD);
 				context.write(WORD, ONE);
 			}
 		}
 	}
 
+	/*
+	 * Counters reported by the in-mapper combining mode. The reduction ratio is
+	 * INPUT_WORDS / OUTPUT_RECORDS.
+	 */
+	public static enum InMapperCombining {
+		INPUT_WORDS, OUTPUT_RECORDS, FLUSHES
+	}
+
+	/*
+	 * Mapper: aggregates (word, count) across all map() calls of a task in a
+	 * primitive table and emits it in cleanup(), or earlier when the table
+	 * grows past the configured number of entries or estimated bytes.
+	 */
+	private static class WordCountInMapperCombiningMapper extends
+			Mapper<LongWritable, Text, Text, IntWritable> {
+
+		// Approximate bytes per entry besides the key: table slots and columns
+		private static final int ENTRY_OVERHEAD = 24;
+
+		private final static Text WORD = new Text();
+		private final static IntWritable COUNT = new IntWritable();
+		private final TextTokenizer tokenizer = new TextTokenizer();
+		private OpenHashMapStringIntWritable counts;
+		private int maxEntries;
+		private long maxBytes;
+
+		@Override
+		public void setup(Context context) {
+			Configuration conf = context.getConfiguration();
+			maxEntries = conf.getInt(MAX_ENTRIES_KEY, DEFAULT_MAX_ENTRIES);
+			maxBytes = conf.getLong(MAX_BYTES_KEY, DEFAULT_MAX_BYTES);
+			counts = new OpenHashMapStringIntWritable(Math.min(maxEntries, 1 << 16));
+		}
+
+		@Override
+		public void map(LongWritable key, Text value, Context context)
+				throws IOException, InterruptedException {
+			long words = 0;
+			tokenizer.reset(value);
+			while (tokenizer.next()) {
+				tokenizer.token(WORD);
+				counts.increment(WORD, 1);
+				words++;
+			}
+			context.getCounter(InMapperCombining.INPUT_WORDS).increment(words);
+
+			if (counts.size() >= maxEntries
+					|| counts.keyBytes() + (long) counts.size() * ENTRY_OVERHEAD >= maxBytes) {
+				flush(context);
+			}
+		}
+
+		@Override
+		public void cleanup(Context context) throws IOException,
+				InterruptedException {
+			flush(context);
+		}
+
+		private void flush(Context context) throws IOException,
+				InterruptedException {
+			if (counts.isEmpty()) {
+				return;
+			}
+			for (int i = 0; i < counts.size(); i++) {
+				counts.keyAt(i, WORD);
+				COUNT.set(counts.valueAt(i));
+				context.write(WORD, COUNT);
+			}
+			context.getCounter(InMapperCombining.OUTPUT_RECORDS).increment(
+					counts.size());
+			context.getCounter(InMapperCombining.FLUSHES).increment(1);
+			counts.clear();
+		}
+	}
+
 	// Reducer: aggregates counts with the same key.
 	private static class WordCountReducer extends
 			Reducer<Text, IntWritable, Text, IntWritable> {
@@ -87,6 +160,17 @@ public class WordCount extends Configured implements Tool {
 	private static final String INPUT = "input";
 	private static final String OUTPUT = "output";
 	private static final String NUM_REDUCERS = "numReducers";
+	private static final String PACKED = "packed";
+	private static final String COMBINE = "combine";
+	private static final String IN_MAPPER_COMBINING = "inMapperCombining";
+
+	/*
+	 * Flush thresholds of the in-mapper combining mode
+	 */
+	public static final String MAX_ENTRIES_KEY = "wordcount.inmapper.max.entries";
+	public static final String MAX_BYTES_KEY = "wordcount.inmapper.max.bytes";
+	private static final int DEFAULT_MAX_ENTRIES = 1 << 20;
+	private static final long DEFAULT_MAX_BYTES = 64L << 20;
 
 	/**
 	 * Runs this tool.
@@ -101,6 +185,16 @@ public class WordCount extends Configured implements Tool {
 				.withDescription("output path").create(OUTPUT));
 		options.addOption(OptionBuilder.withArgName("num").hasArg()
 				.withDescription("number of reducers").create(NUM_REDUCERS));
+		options.addOption(OptionBuilder
+				.withDescription("read text files packed into SequenceFiles by PackLocalFiles")
+				.create(PACKED));
+		options.addOption(OptionBuilder.withArgName("MB").hasArg()
+				.withDescription("group many input files per split, up to this size")
+				.create(COMBINE));
+		options.addOption(OptionBuilder
+				.withDescription("aggregate counts inside the mapper (thresholds: -D "
+						+ MAX_ENTRIES_KEY + ", -D " + MAX_BYTES_KEY + ")")
+				.create(IN_MAPPER_COMBINING));
 
 		CommandLine cmdline;
 		CommandLineParser parser = new GnuParser();
@@ -127,11 +221,18 @@ public class WordCount extends Configured implements Tool {
 		String outputPath = cmdline.getOptionValue(OUTPUT);
 		int reduceTasks = cmdline.hasOption(NUM_REDUCERS) ? Integer
 				.parseInt(cmdline.getOptionValue(NUM_REDUCERS)) : 1;
+		boolean packed = cmdline.hasOption(PACKED);
+		long combineSize = cmdline.hasOption(COMBINE) ? Long
+				.parseLong(cmdline.getOptionValue(COMBINE)) << 20 : 0;
+		boolean inMapperCombining = cmdline.hasOption(IN_MAPPER_COMBINING);
 
 		LOG.info("Tool: " + WordCount.class.getSimpleName());
 		LOG.info(" - input path: " + inputPath);
 		LOG.info(" - output path: " + outputPath);
 		LOG.info(" - number of reducers: " + reduceTasks);
+		LOG.info(" - packed input: " + packed);
+		LOG.info(" - combined split size: " + combineSize);
+		LOG.info(" - in-mapper combining: " + inMapperCombining);
 
 		// Create and configure a MapReduce job
 		Configuration conf = getConf();
@@ -142,6 +243,14 @@ public class WordCount extends Configured implements Tool {
 		job.setNumReduceTasks(reduceTasks);
 
 		FileInputFormat.setInputPaths(job, new Path(inputPath));
+		if (combineSize > 0) {
+			// Splits of many files, by node and rack of their blocks
+			job.setInputFormatClass(packed ? CombinePackedTextInputFormat.class
+					: CombineTextInputFormat.class);
+			FileInputFormat.setMaxInputSplitSize(job, combineSize);
+		} else if (packed) {
+			job.setInputFormatClass(PackedTextInputFormat.class);
+		}
 		FileOutputFormat.setOutputPath(job, new Path(outputPath));
 
 		job.setOutputKeyClass(Text.class);
@@ -152,7 +261,11 @@ public class WordCount extends Configured implements Tool {
 		 * reducer, and an optional combiner for performance optimization (which
 		 * is usually the same as the reducer)
 		 */
-		job.setMapperClass(WordCountMapper.class);
+		if (inMapperCombining) {
+			job.setMapperClass(WordCountInMapperCombiningMapper.class);
+		} else {
+			job.setMapperClass(WordCountMapper.class);
+		}
 		job.setCombinerClass(WordCountReducer.class);
 		job.setReducerClass(WordCountReducer.class);
 
@@ -166,6 +279,16 @@ public class WordCount extends Configured implements Tool {
 		LOG.info("Job Finished in " + (System.currentTimeMillis() - startTime)
 				/ 1000.0 + " seconds");
 
+		if (inMapperCombining) {
+			Counters counters = job.getCounters();
+			long in = counters.findCounter(InMapperCombining.INPUT_WORDS).getValue();
+			long out = counters.findCounter(InMapperCombining.OUTPUT_RECORDS).getValue();
+			LOG.info("In-mapper combining: " + in + " words -> " + out
+					+ " records in "
+					+ counters.findCounter(InMapperCombining.FLUSHES).getValue()
+					+ " flushes, reduction ratio " + (out == 0 ? 0 : (double) in / out));
+		}
+
 		return 0;
 	}
 
@@ -0,0 +1,168 @@
+package hk.ust.comp4651;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Test;
+
+/**
+ * Round trips of the versioned, front-coded serialized form of
+ * {@link OpenHashMapStringIntWritable}.
+ */
+public class OpenHashMapStringIntWritableTest {
+
+	private static final String[] WORDS = { "a", "ab", "abc", "abd", "b",
+			"banana", "band", "bandana", "\u00E9t\u00E9", "\u00E9tude",
+			"\u4E2D\u6587", "\u4E2D", "\uD83D\uDE00", "\uD83D\uDE01", "x" };
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Random random = new Random(4651);
+		for (int n = 0; n < 200; n++) {
+			Map<String, Integer> expected = new HashMap<String, Integer>();
+			OpenHashMapStringIntWritable stripe = randomStripe(random,
+					random.nextInt(n + 1), expected);
+
+			OpenHashMapStringIntWritable copy = new OpenHashMapStringIntWritable();
+			copy.increment("stale", 7);
+			copy.readFields(input(serialize(stripe)));
+			assertStripe(expected, copy);
+		}
+	}
+
+	@Test
+	public void testEmptyRoundTrip() throws IOException {
+		byte[] bytes = serialize(new OpenHashMapStringIntWritable());
+		assertArrayEquals(new byte[] { 1, 0 }, bytes);
+
+		OpenHashMapStringIntWritable copy = new OpenHashMapStringIntWritable();
+		copy.increment("stale");
+		copy.readFields(input(bytes));
+		assertEquals(0, copy.size());
+	}
+
+	@Test
+	public void testFrontCodedLayout() throws IOException {
+		OpenHashMapStringIntWritable stripe = new OpenHashMapStringIntWritable();
+		stripe.increment("abd", 3);
+		stripe.increment("abc", 300);
+
+		/*
+		 * Format 1, 2 entries, then per entry the shared prefix length, the
+		 * suffix length, the suffix and the count, in key order
+		 */
+		byte[] expected = { 1, 2, 0, 3, 'a', 'b', 'c', (byte) 0x8e, 0x01,
+				0x2c, 2, 1, 'd', 3 };
+		assertArrayEquals(expected, serialize(stripe));
+	}
+
+	@Test
+	public void testPlusDataInput() throws IOException {
+		Random random = new Random(1400);
+		for (int n = 0; n < 200; n++) {
+			Map<String, Integer> expected = new HashMap<String, Integer>();
+			OpenHashMapStringIntWritable stripe = randomStripe(random,
+					random.nextInt(20), expected);
+			OpenHashMapStringIntWritable other = randomStripe(random,
+					random.nextInt(20), expected);
+
+			DataInputBuffer in = input(serialize(other));
+			stripe.plus(in);
+			assertEquals(0, in.available());
+			assertStripe(expected, stripe);
+		}
+	}
+
+	@Test
+	public void testConsecutiveStripes() throws IOException {
+		OpenHashMapStringIntWritable s1 = new OpenHashMapStringIntWritable();
+		s1.increment("left", 1);
+		OpenHashMapStringIntWritable s2 = new OpenHashMapStringIntWritable();
+		s2.increment("right", 2);
+
+		DataOutputBuffer out = new DataOutputBuffer();
+		s1.write(out);
+		s2.write(out);
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(out.getData(), out.getLength());
+
+		OpenHashMapStringIntWritable copy = new OpenHashMapStringIntWritable();
+		copy.readFields(in);
+		assertEquals(1, copy.size());
+		assertEquals(1, copy.get("left"));
+		copy.readFields(in);
+		assertEquals(1, copy.size());
+		assertEquals(2, copy.get("right"));
+	}
+
+	@Test
+	public void testUnknownFormat() throws IOException {
+		OpenHashMapStringIntWritable stripe = new OpenHashMapStringIntWritable();
+		stripe.increment("word", 1);
+		byte[] bytes = serialize(stripe);
+		for (byte format : new byte[] { 0, 2, -1 }) {
+			bytes[0] = format;
+			try {
+				new OpenHashMapStringIntWritable().readFields(input(bytes));
+				fail("Format " + format + " was accepted");
+			} catch (IOException e) {
+				assertEquals("Unknown stripe format: " + format, e.getMessage());
+			}
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testCorruptPrefix() throws IOException {
+		// The first key cannot share a prefix with a previous key
+		byte[] bytes = { 1, 1, 2, 1, 'a', 1 };
+		new OpenHashMapStringIntWritable().readFields(input(bytes));
+	}
+
+	private static OpenHashMapStringIntWritable randomStripe(Random random,
+			int increments, Map<String, Integer> expected) {
+		OpenHashMapStringIntWritable stripe = new OpenHashMapStringIntWritable();
+		for (int i = 0; i < increments; i++) {
+			String key = WORDS[random.nextInt(WORDS.length)];
+			if (random.nextBoolean()) {
+				key += random.nextInt(1000);
+			}
+			int inc = random.nextInt(5) == 0 ? random.nextInt(1 << 20) : 1;
+			stripe.increment(key, inc);
+			Integer old = expected.get(key);
+			expected.put(key, old == null ? inc : old + inc);
+		}
+		return stripe;
+	}
+
+	private static void assertStripe(Map<String, Integer> expected,
+			OpenHashMapStringIntWritable stripe) {
+		assertEquals(expected.size(), stripe.size());
+		for (int i = 0; i < stripe.size(); i++) {
+			assertEquals(stripe.keyAt(i), expected.get(stripe.keyAt(i))
+					.intValue(), stripe.valueAt(i));
+		}
+	}
+
+	private static byte[] serialize(OpenHashMapStringIntWritable stripe)
+			throws IOException {
+		DataOutputBuffer out = new DataOutputBuffer();
+		stripe.write(out);
+		byte[] bytes = new byte[out.getLength()];
+		System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	private static DataInputBuffer input(byte[] bytes) {
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(bytes, bytes.length);
+		return in;
+	}
+}
@@ -0,0 +1,110 @@
+package hk.ust.comp4651;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+/**
+ * Checks that the raw comparator of {@link PairOfStrings} orders serialized
+ * pairs as {@link PairOfStrings#compareTo(PairOfStrings)} orders the pairs.
+ */
+public class PairOfStringsTest {
+
+	/*
+	 * Characters of every UTF-8 length, on both sides of the surrogates:
+	 * supplementary characters sort before U+E000..U+FFFF in UTF-16 order but
+	 * after them in UTF-8 byte order
+	 */
+	private static final int[] CODE_POINTS = { 'a', 'b', 'z', 0, 0x7F, 0x80,
+			0xE9, 0x7FF, 0x800, 0x4E2D, 0xD7FF, 0xE000, 0xFB01, 0xFF21, 0xFFFD,
+			0xFFFF, 0x10000, 0x1F600, 0x20000, 0x10FFFF };
+
+	private final PairOfStrings.Comparator comparator = new PairOfStrings.Comparator();
+
+	@Test
+	public void testSupplementaryBeforeHighBmp() throws IOException {
+		String emoji = new String(Character.toChars(0x1F600));
+		assertSameOrder(new PairOfStrings(emoji, ""), new PairOfStrings(
+				"\uFFFF", ""));
+		assertSameOrder(new PairOfStrings("x", "\uE000"), new PairOfStrings(
+				"x", emoji));
+		assertSameOrder(new PairOfStrings("ab" + emoji, "c"),
+				new PairOfStrings("ab\uFF21", "c"));
+	}
+
+	@Test
+	public void testPrefixesAndMarginals() throws IOException {
+		assertSameOrder(new PairOfStrings("a", ""), new PairOfStrings("a", "b"));
+		assertSameOrder(new PairOfStrings("ab", ""), new PairOfStrings("a", "z"));
+		assertSameOrder(new PairOfStrings("\u4E2D", "x"), new PairOfStrings(
+				"\u4E2D\u4E2D", ""));
+		assertSameOrder(new PairOfStrings("", ""), new PairOfStrings("", ""));
+	}
+
+	@Test
+	public void testRandomPairs() throws IOException {
+		Random random = new Random(4651);
+		for (int i = 0; i < 100000; i++) {
+			String left = randomString(random);
+			/*
+			 * Share the left element often enough to compare right elements
+			 */
+			PairOfStrings p1 = new PairOfStrings(left, randomString(random));
+			PairOfStrings p2 = new PairOfStrings(random.nextInt(3) == 0 ? left
+					: randomString(random), randomString(random));
+			assertSameOrder(p1, p2);
+		}
+	}
+
+	@Test
+	public void testCompareUtf8() {
+		Random random = new Random(1400);
+		for (int i = 0; i < 100000; i++) {
+			String s1 = randomString(random);
+			String s2 = random.nextBoolean() ? s1 + randomString(random)
+					: randomString(random);
+			byte[] b1 = new Text(s1).copyBytes();
+			byte[] b2 = new Text(s2).copyBytes();
+			assertEquals(s1 + " vs " + s2, Integer.signum(s1.compareTo(s2)),
+					Integer.signum(PairOfStrings.Comparator.compareUtf8(b1, 0,
+							b1.length, b2, 0, b2.length)));
+		}
+	}
+
+	private void assertSameOrder(PairOfStrings p1, PairOfStrings p2)
+			throws IOException {
+		byte[] b1 = serialize(p1);
+		byte[] b2 = serialize(p2);
+		int expected = Integer.signum(p1.compareTo(p2));
+		assertEquals(p1 + " vs " + p2, expected, Integer.signum(comparator
+				.compare(b1, 0, b1.length, b2, 0, b2.length)));
+		assertEquals(p2 + " vs " + p1, -expected, Integer.signum(comparator
+				.compare(b2, 0, b2.length, b1, 0, b1.length)));
+	}
+
+	static byte[] serialize(PairOfStrings pair) throws IOException {
+		DataOutputBuffer out = new DataOutputBuffer();
+		pair.write(out);
+		byte[] bytes = new byte[out.getLength()];
+		System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	/*
+	 * Short strings over few characters, so that random strings often share
+	 * prefixes
+	 */
+	private static String randomString(Random random) {
+		StringBuilder sb = new StringBuilder();
+		int length = random.nextInt(5);
+		for (int i = 0; i < length; i++) {
+			sb.appendCodePoint(CODE_POINTS[random.nextInt(CODE_POINTS.length)]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,192 @@
+package hk.ust.comp4651;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+/**
+ * Checks that the in-place number parsing of
+ * {@link TextRecordScanner.Record} agrees with {@link Float#parseFloat} and
+ * {@link Integer#parseInt}, bit for bit, and fails on the same inputs.
+ */
+public class TextRecordScannerTest {
+
+	@Test
+	public void testFloatToString() {
+		Random random = new Random(4651);
+		for (int i = 0; i < 1000000; i++) {
+			float f = Float.intBitsToFloat(random.nextInt());
+			assertFloat(Float.toString(f));
+		}
+		for (int i = 0; i < 100000; i++) {
+			assertFloat(Float.toString(random.nextFloat()));
+			assertFloat(Float.toString(random.nextInt(1000000)
+					/ (float) (1 + random.nextInt(1000000))));
+		}
+	}
+
+	@Test
+	public void testRandomDecimals() {
+		Random random = new Random(1400);
+		for (int i = 0; i < 1000000; i++) {
+			StringBuilder sb = new StringBuilder();
+			if (random.nextInt(4) == 0) {
+				sb.append(random.nextBoolean() ? '-' : '+');
+			}
+			int digits = 1 + random.nextInt(20);
+			int point = random.nextInt(digits + 2) - 1;
+			for (int d = 0; d < digits; d++) {
+				if (d == point) {
+					sb.append('.');
+				}
+				sb.append((char) ('0' + random.nextInt(10)));
+			}
+			if (random.nextBoolean()) {
+				sb.append(random.nextBoolean() ? 'e' : 'E');
+				int exponent = random.nextInt(101) - 50;
+				sb.append(random.nextInt(3) == 0 && exponent >= 0 ? "+" : "")
+						.append(exponent);
+			}
+			assertFloat(sb.toString());
+		}
+	}
+
+	@Test
+	public void testMidpoints() {
+		// Integers halfway between two floats, short enough for the fast path
+		for (int n = 1 << 24; n < (1 << 24) + 1000; n++) {
+			assertFloat(Integer.toString(n));
+			assertFloat(Integer.toString(n) + ".0");
+			assertFloat("-" + n + "e0");
+			assertFloat(n / 10 + "." + n % 10 + "e1");
+		}
+		assertFloat("33554434");
+		assertFloat("33554438");
+		assertFloat("1.6777217E7");
+
+		// Exact decimal midpoints and their neighbors
+		Random random = new Random(2015);
+		for (int i = 0; i < 100000; i++) {
+			float f = Float.intBitsToFloat(random.nextInt() & 0x7f7fffff);
+			BigDecimal low = new BigDecimal(f);
+			BigDecimal high = new BigDecimal(Math.nextUp(f));
+			BigDecimal midpoint = low.add(high).divide(BigDecimal.valueOf(2));
+			assertFloat(midpoint.toString());
+			assertFloat(midpoint.toPlainString());
+			assertFloat(midpoint.toString() + "1");
+			assertFloat(midpoint.round(new java.math.MathContext(15))
+					.toString());
+		}
+	}
+
+	@Test
+	public void testExponents() {
+		String[] values = { "1e-45", "1.4e-45", "1.4E-45", "7e-46", "8e-46",
+				"1e-46", "1.17549435E-38", "1.1754942E-38", "3.4028235e38",
+				"3.4028235E38", "3.4028236e38", "3.4028237e38", "1e38", "1e39",
+				"-1e39", "1E5", "1e+5", "1e-5", "-2.5e-3", "2.5e+03", "1e22",
+				"1e23", "1e-22", "1e-23", "123456789012345e-22",
+				"1234567890123456e-22", "1e0000", "1e00001", "0e99999",
+				"1e99999", "1e-99999", "0.0", "-0.0", "+0", "0", "-0", ".5",
+				"5.", "-.5e1", "000000000000000000001.5", "0.000000000000000000001" };
+		for (String value : values) {
+			assertFloat(value);
+		}
+	}
+
+	@Test
+	public void testSpecialValues() {
+		String[] values = { "Infinity", "-Infinity", "+Infinity", "NaN",
+				"-NaN", "+NaN", "1.5f", "1.5F", "2d", "0x1p3", "0x1.8p1" };
+		for (String value : values) {
+			assertFloat(value);
+		}
+	}
+
+	@Test
+	public void testMalformedFloats() {
+		String[] values = { "", "-", "+", ".", "-.", "e5", "1e", "1e+",
+				"1e-", "1.2.3", "--1", "+-1", "1-", "abc", "inf", "nan",
+				"1,5", "1e5.5", "\u00e9" };
+		for (String value : values) {
+			assertFloat(value);
+		}
+	}
+
+	@Test
+	public void testInts() {
+		Random random = new Random(4651);
+		for (int i = 0; i < 1000000; i++) {
+			assertInt(Integer.toString(random.nextInt()));
+			assertInt(Integer.toString(random.nextInt(1000)));
+		}
+		for (long v = Integer.MAX_VALUE - 20L; v <= Integer.MAX_VALUE + 20L; v++) {
+			assertInt(Long.toString(v));
+			assertInt(Long.toString(-v));
+			assertInt("+" + v);
+		}
+		String[] values = { "2147483647", "-2147483648", "2147483648",
+				"-2147483649", "21474836470", "-21474836480", "9999999999",
+				"99999999999999999999", "00000000000000000000042",
+				"-00000000000000002147483648", "+0", "-0", "0", "", "-", "+",
+				"1a", "a1", " 1", "1.0", "1e3", "--1", "+-1", "0x10",
+				"\u0663\u0664", "-\u0661", "\uff11\uff12" };
+		for (String value : values) {
+			assertInt(value);
+		}
+	}
+
+	private static void assertFloat(String value) {
+		TextRecordScanner.Record record = record(value);
+		float expected;
+		try {
+			expected = Float.parseFloat(value);
+		} catch (NumberFormatException e) {
+			try {
+				float actual = record.floatField(0);
+				fail("\"" + value + "\" parsed as " + actual);
+			} catch (NumberFormatException expectedFailure) {
+				return;
+			}
+			return;
+		}
+		float actual = record.floatField(0);
+		assertEquals(value, Float.floatToIntBits(expected),
+				Float.floatToIntBits(actual));
+	}
+
+	private static void assertInt(String value) {
+		TextRecordScanner.Record record = record(value);
+		int expected;
+		try {
+			expected = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			try {
+				int actual = record.intField(0);
+				fail("\"" + value + "\" parsed as " + actual);
+			} catch (NumberFormatException expectedFailure) {
+				return;
+			}
+			return;
+		}
+		assertEquals(value, expected, record.intField(0));
+	}
+
+	/*
+	 * A record whose only field is the whole value, whitespace included
+	 */
+	private static TextRecordScanner.Record record(String value) {
+		Text text = new Text(value);
+		ByteBuffer buffer = ByteBuffer.wrap(text.copyBytes());
+		TextRecordScanner.Record record = new TextRecordScanner.Record();
+		record.clear(buffer);
+		record.addField(0, buffer.limit());
+		return record;
+	}
+}